@@ -0,0 +1,63 @@
+package com.mteng.basicSocket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Keep-alive mode of the greeting protocol.
+ * <p>
+ * A client opens a connection with the classic {@code writeUTF} hello. If that
+ * hello is exactly {@link #UPGRADE}, the server answers with the same token via
+ * {@code writeUTF} and both sides switch to frames for the rest of the
+ * connection:
+ * <pre>
+ *   int  payload length (bytes)
+ *   long sequence number
+ *   byte[length] payload
+ * </pre>
+ * Every request frame gets exactly one response frame carrying the same
+ * sequence number, so a client may pipeline any number of requests before
+ * reading replies. Either side ends the session by closing the socket.
+ */
+public final class GreetingProtocol {
+    public static final String UPGRADE = "KEEPALIVE/1";
+    public static final int HEADER_BYTES = 4 + 8;
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private GreetingProtocol() {
+    }
+
+    public static void writeFrame(DataOutputStream out, long seq, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.writeLong(seq);
+        out.write(payload);
+    }
+
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        long seq = in.readLong();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(seq, payload);
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    public static final class Frame {
+        public final long seq;
+        public final byte[] payload;
+
+        public Frame(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+}
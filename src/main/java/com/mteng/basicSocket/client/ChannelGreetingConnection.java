@@ -0,0 +1,176 @@
+package com.mteng.basicSocket.client;
+
+// File Name ChannelGreetingConnection.java
+
+import com.mteng.basicSocket.GreetingProtocol;
+import com.mteng.basicSocket.codec.BufferPool;
+import com.mteng.basicSocket.codec.FrameCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Keep-alive greeting connection built on a blocking {@link SocketChannel} and the
+ * pooled-buffer {@link FrameCodec}.
+ * <p>
+ * Requests are copied straight into a pooled direct buffer and replies are decoded
+ * in place, so a steady send/receive loop allocates nothing per greeting. Reply
+ * payloads are skipped unless a {@link FrameCodec.Handler} is installed with
+ * {@link #setPayloadHandler(FrameCodec.Handler)}.
+ */
+public class ChannelGreetingConnection implements FrameConnection, FrameCodec.Handler {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final FrameCodec codec = new FrameCodec(GreetingProtocol.MAX_PAYLOAD);
+    private final ByteBuffer in = BufferPool.SHARED.acquire(BUFFER_SIZE);
+    private final ByteBuffer out = BufferPool.SHARED.acquire(BUFFER_SIZE);
+    private FrameCodec.Handler payloadHandler;
+    private long nextSeq = 0;
+    private boolean closed;
+
+    // sequence numbers of replies decoded but not yet returned by receiveSeq()
+    private long[] completed = new long[64];
+    private int completedHead;
+    private int completedCount;
+
+    public ChannelGreetingConnection(String host, int port) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        byte[] token = GreetingProtocol.UPGRADE.getBytes(GreetingProtocol.UTF_8);
+        out.putShort((short) token.length).put(token);
+        flush();
+        in.limit(2 + token.length);
+        while (in.hasRemaining()) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Server closed the connection during the upgrade");
+            }
+        }
+        in.flip();
+        in.position(2);
+        for (byte b : token) {
+            if (in.get() != b) {
+                channel.close();
+                throw new IOException("Server does not support keep-alive");
+            }
+        }
+    }
+
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    public void setPayloadHandler(FrameCodec.Handler payloadHandler) {
+        this.payloadHandler = payloadHandler;
+    }
+
+    public long send(byte[] payload) throws IOException {
+        long seq = nextSeq++;
+        reserve(FrameCodec.HEADER_BYTES);
+        FrameCodec.writeHeader(out, payload.length, seq);
+        int offset = 0;
+        while (offset < payload.length) {
+            reserve(1);
+            int n = Math.min(out.remaining(), payload.length - offset);
+            out.put(payload, offset, n);
+            offset += n;
+        }
+        return seq;
+    }
+
+    /**
+     * Sends the remaining bytes of {@code payload} without changing its position.
+     */
+    public long send(ByteBuffer payload) throws IOException {
+        long seq = nextSeq++;
+        reserve(FrameCodec.HEADER_BYTES);
+        FrameCodec.writeHeader(out, payload.remaining(), seq);
+        int position = payload.position();
+        int limit = payload.limit();
+        while (payload.hasRemaining()) {
+            reserve(1);
+            payload.limit(Math.min(limit, payload.position() + out.remaining()));
+            out.put(payload);
+            payload.limit(limit);
+        }
+        payload.position(position);
+        return seq;
+    }
+
+    public void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    public long receiveSeq() throws IOException {
+        while (completedCount == 0) {
+            in.clear();
+            if (channel.read(in) < 0) {
+                throw new EOFException();
+            }
+            in.flip();
+            codec.decode(in, this);
+        }
+        long seq = completed[completedHead];
+        completedHead = (completedHead + 1) % completed.length;
+        completedCount--;
+        return seq;
+    }
+
+    public void onFrameStart(long seq, int length) throws IOException {
+        if (payloadHandler != null) {
+            payloadHandler.onFrameStart(seq, length);
+        }
+    }
+
+    public void onPayload(ByteBuffer chunk) throws IOException {
+        if (payloadHandler != null) {
+            payloadHandler.onPayload(chunk);
+        }
+    }
+
+    public void onFrameEnd(long seq) throws IOException {
+        if (payloadHandler != null) {
+            payloadHandler.onFrameEnd(seq);
+        }
+        if (completedCount == completed.length) {
+            long[] bigger = new long[completed.length * 2];
+            for (int i = 0; i < completedCount; i++) {
+                bigger[i] = completed[(completedHead + i) % completed.length];
+            }
+            completed = bigger;
+            completedHead = 0;
+        }
+        completed[(completedHead + completedCount) % completed.length] = seq;
+        completedCount++;
+    }
+
+    /**
+     * Closes the channel and returns the buffers to the pool; no thread may still be
+     * using this connection. To unblock a reader, close {@link #getSocket()} first.
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        BufferPool.SHARED.release(in);
+        BufferPool.SHARED.release(out);
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            flush();
+        }
+    }
+}
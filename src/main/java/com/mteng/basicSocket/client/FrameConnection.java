@@ -0,0 +1,30 @@
+package com.mteng.basicSocket.client;
+
+// File Name FrameConnection.java
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A keep-alive greeting connection as seen by the benchmark: requests are
+ * buffered by {@link #send(byte[])}, pushed out by {@link #flush()}, and
+ * replies are identified by their sequence number.
+ */
+public interface FrameConnection extends Closeable {
+    Socket getSocket();
+
+    /**
+     * @return the sequence number the reply will carry
+     */
+    long send(byte[] payload) throws IOException;
+
+    void flush() throws IOException;
+
+    /**
+     * Blocks until the next reply has been read completely.
+     *
+     * @return its sequence number
+     */
+    long receiveSeq() throws IOException;
+}
@@ -0,0 +1,289 @@
+package com.mteng.basicSocket.client;
+
+// File Name GreetingBenchmark.java
+
+import com.mteng.basicSocket.GreetingProtocol;
+import com.mteng.basicSocket.Options;
+import com.mteng.util.LatencyHistogram;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for {@code GreetingServer}.
+ * <p>
+ * Options (all optional):
+ * <ul>
+ * <li>protocol=keepalive|once - frames over persistent connections, or one
+ * TCP handshake per greeting (default keepalive)</li>
+ * <li>connections=N - concurrent connections (default 16)</li>
+ * <li>rate=R - total greetings per second; 0 runs closed-loop (default 0)</li>
+ * <li>pipeline=D - closed-loop requests in flight per keep-alive connection (default 1)</li>
+ * <li>codec=pooled|stream - keep-alive over the pooled-buffer {@code FrameCodec}
+ * or over data streams (default stream)</li>
+ * <li>duration=S, warmup=S, interval=S - seconds (defaults 10, 0, 1)</li>
+ * </ul>
+ * With a target rate, latency is measured from the time each greeting was
+ * scheduled to be sent rather than when it actually went out, so a stalled
+ * server shows up in the percentiles instead of silently lowering the rate.
+ * <p>
+ * The final report includes the bytes allocated per greeting by the load
+ * generating threads, where the JVM can measure it.
+ */
+public class GreetingBenchmark {
+    private final String host;
+    private final int port;
+    private final boolean keepAlive;
+    private final boolean pooled;
+    private final int connections;
+    private final double rate;
+    private final int pipeline;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long intervalNanos;
+
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<FrameConnection> sockets = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public GreetingBenchmark(String host, int port, Options options) {
+        this.host = host;
+        this.port = port;
+        this.keepAlive = !"once".equals(options.get("protocol", "keepalive"));
+        this.pooled = "pooled".equals(options.get("codec", "stream"));
+        this.connections = options.getInt("connections", 16);
+        this.rate = options.getInt("rate", 0);
+        this.pipeline = Math.max(1, options.getInt("pipeline", 1));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(options.getInt("warmup", 0));
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(options.getInt("interval", 1));
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("Benchmarking " + host + ":" + port + " with " + connections
+                + (keepAlive ? (pooled ? " pooled" : "") + " keep-alive" : " one-shot") + " connections, "
+                + (rate > 0 ? "target " + (long) rate + " greetings/s" : "closed loop, pipeline " + pipeline));
+
+        final long start = System.nanoTime();
+        final long periodNanos = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            threads.addAll(startWorkers(i, start, periodNanos));
+        }
+
+        LatencyHistogram total = new LatencyHistogram();
+        long measuredFrom = start + warmupNanos;
+        long end = measuredFrom + durationNanos;
+        long nextReport = start + intervalNanos;
+        long lastReport = start;
+        long allocatedAtStart = warmupNanos == 0 ? allocatedBytes(threads) : -1;
+        while (System.nanoTime() < end) {
+            LockSupport.parkNanos(Math.max(0, Math.min(nextReport, end) - System.nanoTime()));
+            long now = System.nanoTime();
+            if (now < nextReport && now < end) {
+                continue;
+            }
+            LatencyHistogram slice = interval.copyAndReset();
+            report(String.format("%6.1fs", (now - start) / 1e9), slice, now - lastReport);
+            if (now > measuredFrom) {
+                total.add(slice);
+                if (allocatedAtStart < 0) {
+                    allocatedAtStart = allocatedBytes(threads);
+                }
+            }
+            lastReport = now;
+            nextReport = now + intervalNanos;
+        }
+        long allocated = allocatedBytes(threads) - allocatedAtStart;
+        running = false;
+        synchronized (sockets) {
+            for (FrameConnection connection : sockets) {
+                try {
+                    connection.getSocket().close();   // unblocks the readers
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (FrameConnection connection : sockets) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        System.out.println("---");
+        report(" total", total, durationNanos);
+        System.out.println("errors=" + errors.get() + (allocated >= 0 && total.getCount() > 0
+                ? "  allocated/greeting=" + allocated / total.getCount() + " bytes" : ""));
+    }
+
+    private void report(String label, LatencyHistogram histogram, long elapsedNanos) {
+        long count = histogram.getCount();
+        System.out.println(label + "  greetings=" + count
+                + String.format("  rate=%.0f/s  ", count * 1e9 / Math.max(1, elapsedNanos))
+                + "latency(us) " + histogram.summary(1000)
+                + String.format(" mean=%.1f", histogram.getMean() / 1000));
+    }
+
+    private List<Thread> startWorkers(int index, final long start, final long periodNanos) {
+        List<Thread> threads = new ArrayList<>();
+        if (!keepAlive) {
+            threads.add(daemon("bench-once-" + index, new Runnable() {
+                public void run() {
+                    runOneShot(start, periodNanos);
+                }
+            }));
+            return threads;
+        }
+        final FrameConnection connection;
+        try {
+            connection = pooled ? new ChannelGreetingConnection(host, port)
+                    : new GreetingConnection(host, port);
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            return threads;
+        }
+        synchronized (sockets) {
+            sockets.add(connection);
+        }
+        final byte[] payload = ("Hello from " + connection.getSocket().getLocalSocketAddress())
+                .getBytes(GreetingProtocol.UTF_8);
+        if (periodNanos == 0) {
+            threads.add(daemon("bench-conn-" + index, new Runnable() {
+                public void run() {
+                    runClosedLoop(connection, payload);
+                }
+            }));
+        } else {
+            // open loop: the sender never waits for replies, the reader derives each
+            // greeting's scheduled send time from its sequence number
+            final long connectionStart = start + index * periodNanos / connections;
+            threads.add(daemon("bench-send-" + index, new Runnable() {
+                public void run() {
+                    runPacedSender(connection, payload, connectionStart, periodNanos);
+                }
+            }));
+            threads.add(daemon("bench-recv-" + index, new Runnable() {
+                public void run() {
+                    runPacedReceiver(connection, connectionStart, periodNanos);
+                }
+            }));
+        }
+        return threads;
+    }
+
+    private void runClosedLoop(FrameConnection connection, byte[] payload) {
+        long[] sentAt = new long[pipeline];
+        try {
+            for (int i = 0; i < pipeline; i++) {
+                sentAt[(int) (connection.send(payload) % pipeline)] = System.nanoTime();
+            }
+            connection.flush();
+            while (running) {
+                long seq = connection.receiveSeq();
+                long now = System.nanoTime();
+                interval.record(now - sentAt[(int) (seq % pipeline)]);
+                sentAt[(int) (connection.send(payload) % pipeline)] = now;
+                connection.flush();
+            }
+        } catch (IOException e) {
+            if (running) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void runPacedSender(FrameConnection connection, byte[] payload,
+                                long connectionStart, long periodNanos) {
+        try {
+            for (long seq = 0; running; seq++) {
+                waitUntil(connectionStart + seq * periodNanos);
+                connection.send(payload);
+                connection.flush();
+            }
+        } catch (IOException e) {
+            if (running) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void runPacedReceiver(FrameConnection connection, long connectionStart,
+                                  long periodNanos) {
+        try {
+            while (running) {
+                long seq = connection.receiveSeq();
+                interval.record(System.nanoTime() - (connectionStart + seq * periodNanos));
+            }
+        } catch (IOException e) {
+            if (running) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void runOneShot(long start, long periodNanos) {
+        for (long n = 0; running; n++) {
+            long scheduled = periodNanos == 0 ? System.nanoTime() : start + n * periodNanos;
+            waitUntil(scheduled);
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                new DataOutputStream(socket.getOutputStream())
+                        .writeUTF("Hello from " + socket.getLocalSocketAddress());
+                new DataInputStream(socket.getInputStream()).readUTF();
+                interval.record(System.nanoTime() - scheduled);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the given live threads, or -1 if unsupported
+     */
+    private static long allocatedBytes(List<Thread> threads) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long[] ids = new long[threads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threads.get(i).getId();
+        }
+        long sum = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids)) {
+            if (bytes < 0) {
+                return -1;
+            }
+            sum += bytes;
+        }
+        return sum;
+    }
+
+    private static void waitUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
@@ -2,14 +2,37 @@ package com.mteng.basicSocket.client;
 
 // File Name GreetingClient.java
 
+import com.mteng.basicSocket.GreetingProtocol;
+import com.mteng.basicSocket.Options;
+
 import java.net.*;
 import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
 
 public class GreetingClient {
+    /**
+     * Usage: GreetingClient &lt;serverName&gt; &lt;port&gt; [once|keepalive|bench] [option=value ...]
+     * <ul>
+     * <li>keepalive: count=&lt;requests&gt; pipeline=&lt;requests in flight&gt;</li>
+     * <li>bench: see {@link GreetingBenchmark}</li>
+     * </ul>
+     */
     public static void main(String[] args) {
         String serverName = args[0];
         int port = Integer.parseInt(args[1]);
+        String mode = args.length > 2 ? args[2] : "once";
+        Options options = Options.parse(args, Math.min(3, args.length));
         try {
+            if ("keepalive".equals(mode)) {
+                keepAlive(serverName, port, options.getInt("count", 10),
+                        options.getInt("pipeline", 1));
+                return;
+            }
+            if ("bench".equals(mode)) {
+                new GreetingBenchmark(serverName, port, options).run();
+                return;
+            }
             System.out.println("Connecting to " + serverName
                     + " on port " + port);
             Socket client = new Socket(serverName, port);
@@ -28,6 +51,50 @@ public class GreetingClient {
             client.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends {@code count} greetings over one connection, keeping up to
+     * {@code pipeline} of them outstanding before reading the replies.
+     */
+    private static void keepAlive(String serverName, int port, int count, int pipeline)
+            throws IOException {
+        System.out.println("Connecting to " + serverName
+                + " on port " + port + " (keep-alive, pipeline " + pipeline + ")");
+        GreetingConnection connection = new GreetingConnection(serverName, port);
+        Map<Long, String> outstanding = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            int sent = 0;
+            while (sent < count) {
+                int window = Math.min(pipeline, count - sent);
+                for (int i = 0; i < window; i++) {
+                    String greeting = "Hello #" + sent + " from "
+                            + connection.getSocket().getLocalSocketAddress();
+                    long seq = connection.send(greeting.getBytes(GreetingProtocol.UTF_8));
+                    outstanding.put(seq, greeting);
+                    sent++;
+                }
+                connection.flush();
+                for (int i = 0; i < window; i++) {
+                    GreetingProtocol.Frame reply = connection.receive();
+                    if (outstanding.remove(reply.seq) == null) {
+                        throw new IOException("Reply for unknown sequence " + reply.seq);
+                    }
+                    if (count <= 10) {
+                        System.out.println("Server says (#" + reply.seq + ") "
+                                + new String(reply.payload, GreetingProtocol.UTF_8));
+                    }
+                }
+            }
+        } finally {
+            connection.close();
         }
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println(count + " greetings in " + micros + " us ("
+                + (micros / Math.max(1, count)) + " us each)");
     }
 }
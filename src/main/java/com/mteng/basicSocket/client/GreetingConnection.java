@@ -0,0 +1,72 @@
+package com.mteng.basicSocket.client;
+
+// File Name GreetingConnection.java
+
+import com.mteng.basicSocket.GreetingProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Client side of a keep-alive greeting connection (see {@link GreetingProtocol}).
+ * <p>
+ * {@link #send(byte[])} only buffers the request, so callers can pipeline any
+ * number of requests, {@link #flush()} once, and then {@link #receive()} the
+ * replies, matching them to requests by sequence number.
+ */
+public class GreetingConnection implements FrameConnection {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private long nextSeq = 0;
+
+    public GreetingConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeUTF(GreetingProtocol.UPGRADE);
+        out.flush();
+        String answer = in.readUTF();
+        if (!GreetingProtocol.UPGRADE.equals(answer)) {
+            socket.close();
+            throw new IOException("Server does not support keep-alive: " + answer);
+        }
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Buffers one request frame.
+     *
+     * @return the sequence number the reply will carry
+     */
+    public long send(byte[] payload) throws IOException {
+        long seq = nextSeq++;
+        GreetingProtocol.writeFrame(out, seq, payload);
+        return seq;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public GreetingProtocol.Frame receive() throws IOException {
+        return GreetingProtocol.readFrame(in);
+    }
+
+    public long receiveSeq() throws IOException {
+        return receive().seq;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+}
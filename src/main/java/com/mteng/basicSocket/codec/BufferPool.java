@@ -0,0 +1,77 @@
+package com.mteng.basicSocket.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of direct {@link ByteBuffer}s in power-of-two size classes.
+ * <p>
+ * Each size class is a small array-backed stack, so neither {@link #acquire(int)}
+ * nor {@link #release(ByteBuffer)} allocates once the pool is warm. Requests larger
+ * than the biggest class are served with unpooled buffers that are simply dropped
+ * on release.
+ */
+public final class BufferPool {
+    public static final BufferPool SHARED = new BufferPool(4 * 1024, 4 * 1024 * 1024, 256);
+
+    private final int minShift;
+    private final int maxPooledSize;
+    private final ByteBuffer[][] free;
+    private final int[] freeCount;
+
+    /**
+     * @param minSize       smallest buffer handed out; rounded up to a power of two
+     * @param maxPooledSize largest buffer kept for reuse
+     * @param maxPerClass   buffers kept per size class
+     */
+    public BufferPool(int minSize, int maxPooledSize, int maxPerClass) {
+        this.minShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, minSize) - 1);
+        this.maxPooledSize = maxPooledSize;
+        int classes = Math.max(1, classOf(maxPooledSize) + 1);
+        this.free = new ByteBuffer[classes][maxPerClass];
+        this.freeCount = new int[classes];
+    }
+
+    /**
+     * @return a cleared direct buffer with at least {@code minCapacity} bytes
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > maxPooledSize) {
+            return ByteBuffer.allocateDirect(minCapacity);
+        }
+        int sizeClass = classOf(minCapacity);
+        ByteBuffer[] stack = free[sizeClass];
+        synchronized (stack) {
+            int n = freeCount[sizeClass];
+            if (n > 0) {
+                ByteBuffer buffer = stack[--n];
+                stack[n] = null;
+                freeCount[sizeClass] = n;
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(1 << (sizeClass + minShift));
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > maxPooledSize || Integer.bitCount(capacity) != 1
+                || capacity < (1 << minShift)) {
+            return;
+        }
+        buffer.clear();
+        int sizeClass = classOf(capacity);
+        ByteBuffer[] stack = free[sizeClass];
+        synchronized (stack) {
+            int n = freeCount[sizeClass];
+            if (n < stack.length) {
+                stack[n] = buffer;
+                freeCount[sizeClass] = n + 1;
+            }
+        }
+    }
+
+    private int classOf(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+        return Math.max(0, shift - minShift);
+    }
+}
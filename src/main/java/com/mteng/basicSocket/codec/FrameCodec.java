@@ -0,0 +1,100 @@
+package com.mteng.basicSocket.codec;
+
+import com.mteng.basicSocket.GreetingProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder for {@link GreetingProtocol} keep-alive frames.
+ * <p>
+ * {@link #decode(ByteBuffer, Handler)} consumes everything it is given and
+ * reports frames through callbacks. Payload bytes are passed on as views of
+ * the caller's buffer, chunk by chunk, so a payload of any size can be relayed
+ * without being copied into an array or decoded into a {@code String}. Frame
+ * headers split across reads are reassembled internally.
+ * <p>
+ * One codec instance belongs to one connection and is not thread-safe.
+ */
+public final class FrameCodec {
+    public static final int HEADER_BYTES = GreetingProtocol.HEADER_BYTES;
+
+    public interface Handler {
+        void onFrameStart(long seq, int length) throws IOException;
+
+        /**
+         * @param chunk part of the current payload; only valid during the call
+         */
+        void onPayload(ByteBuffer chunk) throws IOException;
+
+        void onFrameEnd(long seq) throws IOException;
+    }
+
+    private final int maxPayload;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private long seq;
+    private int payloadRemaining = -1;   // -1 while reading a header
+
+    public FrameCodec() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public FrameCodec(int maxPayload) {
+        this.maxPayload = maxPayload;
+    }
+
+    /**
+     * Decodes all remaining bytes of {@code in}, which is left empty.
+     */
+    public void decode(ByteBuffer in, Handler handler) throws IOException {
+        while (in.hasRemaining()) {
+            if (payloadRemaining < 0) {
+                if (!readHeader(in)) {
+                    return;
+                }
+                handler.onFrameStart(seq, payloadRemaining);
+            }
+            if (payloadRemaining > 0) {
+                int chunk = Math.min(payloadRemaining, in.remaining());
+                int limit = in.limit();
+                in.limit(in.position() + chunk);
+                handler.onPayload(in);
+                in.position(in.limit());
+                in.limit(limit);
+                payloadRemaining -= chunk;
+            }
+            if (payloadRemaining == 0) {
+                payloadRemaining = -1;
+                handler.onFrameEnd(seq);
+            }
+        }
+    }
+
+    private boolean readHeader(ByteBuffer in) throws IOException {
+        int length;
+        if (header.position() == 0 && in.remaining() >= HEADER_BYTES) {
+            length = in.getInt();
+            seq = in.getLong();
+        } else {
+            while (header.hasRemaining() && in.hasRemaining()) {
+                header.put(in.get());
+            }
+            if (header.hasRemaining()) {
+                return false;
+            }
+            header.flip();
+            length = header.getInt();
+            seq = header.getLong();
+            header.clear();
+        }
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        payloadRemaining = length;
+        return true;
+    }
+
+    public static void writeHeader(ByteBuffer out, int length, long seq) {
+        out.putInt(length).putLong(seq);
+    }
+}
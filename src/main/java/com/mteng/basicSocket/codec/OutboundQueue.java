@@ -0,0 +1,123 @@
+package com.mteng.basicSocket.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Outbound bytes of one connection, held in a chain of pooled direct chunks and
+ * drained with a single gathering write.
+ * <p>
+ * Every chunk except the last is in read mode; the last one is still being
+ * filled and is sealed (flipped) when the queue is written out. Not thread-safe.
+ */
+public final class OutboundQueue {
+    private final BufferPool pool;
+    private final int chunkSize;
+    private ByteBuffer[] chunks = new ByteBuffer[4];
+    private int count;
+    private boolean tailOpen;
+    private long pending;
+
+    public OutboundQueue(BufferPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return bytes queued but not yet written
+     */
+    public long pending() {
+        return pending;
+    }
+
+    public void putHeader(int length, long seq) {
+        tail(FrameCodec.HEADER_BYTES).putInt(length).putLong(seq);
+        pending += FrameCodec.HEADER_BYTES;
+    }
+
+    public void put(byte[] src) {
+        int offset = 0;
+        while (offset < src.length) {
+            ByteBuffer tail = tail(1);
+            int n = Math.min(tail.remaining(), src.length - offset);
+            tail.put(src, offset, n);
+            offset += n;
+        }
+        pending += src.length;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code src}, leaving its position unchanged.
+     */
+    public void put(ByteBuffer src) {
+        int position = src.position();
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            ByteBuffer tail = tail(1);
+            if (src.remaining() > tail.remaining()) {
+                src.limit(src.position() + tail.remaining());
+            }
+            tail.put(src);
+            src.limit(limit);
+        }
+        pending += limit - position;
+        src.position(position);
+    }
+
+    /**
+     * Writes as much as the channel accepts.
+     *
+     * @return true when the queue is now empty
+     */
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        if (tailOpen) {
+            chunks[count - 1].flip();
+            tailOpen = false;
+        }
+        if (count == 0) {
+            return true;
+        }
+        pending -= channel.write(chunks, 0, count);
+        int drained = 0;
+        while (drained < count && !chunks[drained].hasRemaining()) {
+            pool.release(chunks[drained]);
+            drained++;
+        }
+        if (drained > 0) {
+            System.arraycopy(chunks, drained, chunks, 0, count - drained);
+            for (int i = count - drained; i < count; i++) {
+                chunks[i] = null;
+            }
+            count -= drained;
+        }
+        return count == 0;
+    }
+
+    public void release() {
+        for (int i = 0; i < count; i++) {
+            pool.release(chunks[i]);
+            chunks[i] = null;
+        }
+        count = 0;
+        tailOpen = false;
+        pending = 0;
+    }
+
+    private ByteBuffer tail(int atLeast) {
+        if (tailOpen && chunks[count - 1].remaining() >= atLeast) {
+            return chunks[count - 1];
+        }
+        if (tailOpen) {
+            chunks[count - 1].flip();
+        }
+        if (count == chunks.length) {
+            ByteBuffer[] bigger = new ByteBuffer[count * 2];
+            System.arraycopy(chunks, 0, bigger, 0, count);
+            chunks = bigger;
+        }
+        chunks[count++] = pool.acquire(Math.max(chunkSize, atLeast));
+        tailOpen = true;
+        return chunks[count - 1];
+    }
+}
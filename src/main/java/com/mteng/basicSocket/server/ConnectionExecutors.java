@@ -0,0 +1,54 @@
+package com.mteng.basicSocket.server;
+
+// File Name ConnectionExecutors.java
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that run one blocking connection handler per task.
+ * <p>
+ * On a JVM with virtual threads every connection gets its own virtual thread;
+ * the lookup is reflective so the project still builds for older targets.
+ * Elsewhere a fixed pool of daemon platform threads is used instead.
+ */
+public final class ConnectionExecutors {
+
+    private ConnectionExecutors() {
+    }
+
+    public static ExecutorService perConnection(int fallbackThreads) {
+        ExecutorService virtual = virtualThreadPerTask();
+        if (virtual != null) {
+            return virtual;
+        }
+        return platformPool(fallbackThreads);
+    }
+
+    public static ExecutorService platformPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "greeting-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return {@code Executors.newVirtualThreadPerTaskExecutor()} or null when unavailable
+     */
+    public static ExecutorService virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
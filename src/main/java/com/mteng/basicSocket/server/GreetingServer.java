@@ -2,47 +2,168 @@ package com.mteng.basicSocket.server;
 
 // File Name GreetingServer.java
 
+import com.mteng.basicSocket.GreetingProtocol;
+import com.mteng.basicSocket.Options;
+
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class GreetingServer extends Thread {
+    private static final int CLIENT_READ_TIMEOUT = 30000;
+
     private ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
 
     public GreetingServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, 50, null, 0);
+    }
+
+    /**
+     * @param backlog     accept queue length handed to the kernel
+     * @param executor    runs one handler per accepted socket, or null to serve inline
+     * @param maxInFlight connections served at once before accept() stops pulling
+     *                    from the backlog; ignored when serving inline
+     */
+    public GreetingServer(int port, int backlog, ExecutorService executor,
+                          int maxInFlight) throws IOException {
+        serverSocket = new ServerSocket(port, backlog);
         serverSocket.setSoTimeout(100000);
+        this.executor = executor;
+        this.inFlight = executor != null ? new Semaphore(maxInFlight) : null;
     }
 
     public void run() {
         while (true) {
             try {
-                System.out.println("Waiting for client on port " +
-                        serverSocket.getLocalPort() + "...");
-                Socket server = serverSocket.accept();
-                System.out.println("Just connected to "
-                        + server.getRemoteSocketAddress());
-                DataInputStream in =
-                        new DataInputStream(server.getInputStream());
-                System.out.println(in.readUTF());
-                DataOutputStream out =
-                        new DataOutputStream(server.getOutputStream());
-                out.writeUTF("Thank you for connecting to "
-                        + server.getLocalSocketAddress() + "\nGoodbye!");
-                server.close();
+                if (executor == null) {
+                    System.out.println("Waiting for client on port " +
+                            serverSocket.getLocalPort() + "...");
+                    Socket server = serverSocket.accept();
+                    System.out.println("Just connected to "
+                            + server.getRemoteSocketAddress());
+                    greet(server, true);
+                } else {
+                    inFlight.acquire();
+                    dispatch(serverSocket.accept());
+                }
             } catch (SocketTimeoutException s) {
                 System.out.println("Socket timed out!");
                 break;
             } catch (IOException e) {
                 e.printStackTrace();
                 break;
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private void dispatch(final Socket server) throws IOException {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        server.setSoTimeout(CLIENT_READ_TIMEOUT);
+                        greet(server, false);
+                    } catch (IOException e) {
+                        closeQuietly(server);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            server.close();
+        }
+    }
+
+    private void greet(Socket server, boolean verbose) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(server.getInputStream()));
+            String hello = in.readUTF();
+            if (verbose)
+                System.out.println(hello);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(server.getOutputStream()));
+            if (GreetingProtocol.UPGRADE.equals(hello)) {
+                out.writeUTF(GreetingProtocol.UPGRADE);
+                out.flush();
+                serveFrames(server, in, out);
+            } else {
+                out.writeUTF("Thank you for connecting to "
+                        + server.getLocalSocketAddress() + "\nGoodbye!");
+                out.flush();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Answers request frames until the client closes the connection. Replies are
+     * only flushed once no further pipelined request is already buffered.
+     */
+    private void serveFrames(Socket server, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        byte[] reply = ("Thank you for connecting to "
+                + server.getLocalSocketAddress()).getBytes(GreetingProtocol.UTF_8);
+        while (true) {
+            GreetingProtocol.Frame request;
+            try {
+                request = GreetingProtocol.readFrame(in);
+            } catch (EOFException e) {
+                return;
+            }
+            GreetingProtocol.writeFrame(out, request.seq, reply);
+            if (in.available() == 0) {
+                out.flush();
             }
         }
     }
 
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+
+    /**
+     * Usage: GreetingServer &lt;port&gt; [blocking|threads|nio] [option=value ...]
+     * <ul>
+     * <li>nio: loops=&lt;selector threads&gt; echo=&lt;relay keep-alive payloads&gt;</li>
+     * <li>threads: backlog=&lt;accept queue&gt; maxInFlight=&lt;connections&gt;
+     * poolSize=&lt;platform threads when virtual threads are unavailable&gt;</li>
+     * </ul>
+     */
     public static void main(String[] args) {
         int port = Integer.parseInt(args[0]);
+        String mode = args.length > 1 ? args[1] : "blocking";
+        Options options = Options.parse(args, Math.min(2, args.length));
+        int cores = Runtime.getRuntime().availableProcessors();
         try {
-            Thread t = new GreetingServer(port);
+            Thread t;
+            if ("nio".equals(mode)) {
+                t = new NioGreetingServer(port, options.getInt("loops", cores),
+                        options.getBoolean("echo", false));
+            } else if ("threads".equals(mode)) {
+                ExecutorService executor = ConnectionExecutors.perConnection(
+                        options.getInt("poolSize", cores * 16));
+                t = new GreetingServer(port, options.getInt("backlog", 1024),
+                        executor, options.getInt("maxInFlight", 10000));
+            } else {
+                t = new GreetingServer(port);
+            }
             t.start();
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,360 @@
+package com.mteng.basicSocket.server;
+
+// File Name NioGreetingServer.java
+
+import com.mteng.basicSocket.GreetingProtocol;
+import com.mteng.basicSocket.codec.BufferPool;
+import com.mteng.basicSocket.codec.FrameCodec;
+import com.mteng.basicSocket.codec.OutboundQueue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking variant of {@link GreetingServer}.
+ * <p>
+ * One acceptor thread hands accepted channels round-robin to a fixed set of
+ * selector event loops. The wire format is the one used by
+ * {@link DataOutputStream#writeUTF(String)}: an unsigned 16-bit length followed
+ * by the modified UTF-8 bytes, so the existing {@code GreetingClient} works
+ * unchanged against either mode. Keep-alive connections
+ * ({@link GreetingProtocol}) are supported as well.
+ */
+public class NioGreetingServer extends Thread {
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] eventLoops;
+    private int nextLoop = 0;
+
+    public NioGreetingServer(int port, int loopCount) throws IOException {
+        this(port, loopCount, false);
+    }
+
+    /**
+     * @param echo answer keep-alive frames with their own payload instead of the greeting
+     */
+    public NioGreetingServer(int port, int loopCount, boolean echo) throws IOException {
+        super("nio-greeting-acceptor");
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        eventLoops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(i, echo);
+        }
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void run() {
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+        System.out.println("Waiting for clients on port " + getLocalPort()
+                + " with " + eventLoops.length + " event loops...");
+        try {
+            while (serverChannel.isOpen()) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    eventLoops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // shutdown() closed the selector underneath us
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            shutdown();
+        }
+    }
+
+    public void shutdown() {
+        try {
+            serverChannel.close();
+            acceptSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : eventLoops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Encodes {@code text} exactly as {@link DataOutputStream#writeUTF(String)} would.
+     */
+    static byte[] encodeUTF(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + 2);
+        new DataOutputStream(bytes).writeUTF(text);
+        return bytes.toByteArray();
+    }
+
+    private static final class EventLoop extends Thread {
+        // largest possible writeUTF hello is 2 + 65535 bytes, so it always fits
+        private static final int READ_BUFFER_SIZE = 128 * 1024;
+
+        private final Selector selector;
+        private final boolean echo;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // replies only depend on the local address, so encode them once per address
+        private final Map<SocketAddress, byte[]> helloReplies = new HashMap<>();
+        private final Map<SocketAddress, byte[]> frameReplies = new HashMap<>();
+
+        EventLoop(int index, boolean echo) throws IOException {
+            super("nio-greeting-loop-" + index);
+            this.echo = echo;
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.offer(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (ClosedSelectorException e) {
+                // already closed
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.flush(key);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(key, readBuffer);
+                            }
+                        } catch (IOException e) {
+                            connection.close(key);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // shutdown() closed the selector underneath us
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                channel.register(selector, SelectionKey.OP_READ, new Connection(this, channel));
+            }
+        }
+
+        byte[] helloReplyFor(SocketAddress localAddress) throws IOException {
+            byte[] reply = helloReplies.get(localAddress);
+            if (reply == null) {
+                reply = encodeUTF("Thank you for connecting to " + localAddress + "\nGoodbye!");
+                helloReplies.put(localAddress, reply);
+            }
+            return reply;
+        }
+
+        byte[] frameReplyFor(SocketAddress localAddress) {
+            byte[] reply = frameReplies.get(localAddress);
+            if (reply == null) {
+                reply = ("Thank you for connecting to " + localAddress)
+                        .getBytes(GreetingProtocol.UTF_8);
+                frameReplies.put(localAddress, reply);
+            }
+            return reply;
+        }
+    }
+
+    /**
+     * Per-connection state. The first writeUTF frame is either a plain hello, which is
+     * answered before closing, or the keep-alive upgrade token, after which frames are
+     * decoded straight out of the event loop's shared direct read buffer by a
+     * {@link FrameCodec}. Replies, or relayed payloads in echo mode, are copied into
+     * pooled direct chunks and written with one gathering write.
+     * <p>
+     * The connection stops reading while more than {@link #MAX_PENDING_OUTPUT} bytes of
+     * replies are waiting, so a client that pipelines without reading cannot grow the
+     * server's memory without bound.
+     */
+    private static final class Connection implements FrameCodec.Handler {
+        private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+        private static final int CHUNK_SIZE = 16 * 1024;
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final OutboundQueue out = new OutboundQueue(BufferPool.SHARED, CHUNK_SIZE);
+        private FrameCodec codec;
+        private ByteBuffer partialHello;
+        private boolean closeAfterFlush;
+        private byte[] frameReply;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void onReadable(SelectionKey key, ByteBuffer in) throws IOException {
+            in.clear();
+            if (partialHello != null) {
+                partialHello.flip();
+                in.put(partialHello);
+                BufferPool.SHARED.release(partialHello);
+                partialHello = null;
+            }
+            if (channel.read(in) < 0) {
+                close(key);
+                return;
+            }
+            in.flip();
+            if (codec == null && !closeAfterFlush && !decodeHello(in)) {
+                partialHello = BufferPool.SHARED.acquire(in.remaining());
+                partialHello.put(in);
+                return;
+            }
+            if (codec != null) {
+                codec.decode(in, this);
+            }
+            flush(key);
+        }
+
+        /**
+         * Consumes the writeUTF hello from {@code in} and queues the answer.
+         *
+         * @return false when {@code in} does not yet hold the whole hello
+         */
+        private boolean decodeHello(ByteBuffer in) throws IOException {
+            int start = in.position();
+            if (in.remaining() < 2) {
+                return false;
+            }
+            int frameLength = 2 + (in.getShort(start) & 0xffff);
+            if (in.remaining() < frameLength) {
+                return false;
+            }
+            boolean upgrade = regionEquals(in, start, UPGRADE_HELLO);
+            in.position(start + frameLength);
+            if (upgrade) {
+                codec = new FrameCodec(GreetingProtocol.MAX_PAYLOAD);
+                frameReply = loop.echo ? null : loop.frameReplyFor(channel.getLocalAddress());
+                out.put(UPGRADE_HELLO);
+            } else {
+                closeAfterFlush = true;
+                out.put(loop.helloReplyFor(channel.getLocalAddress()));
+                in.position(in.limit());
+            }
+            return true;
+        }
+
+        public void onFrameStart(long seq, int length) {
+            if (frameReply == null) {
+                out.putHeader(length, seq);
+            } else {
+                out.putHeader(frameReply.length, seq);
+                out.put(frameReply);
+            }
+        }
+
+        public void onPayload(ByteBuffer chunk) {
+            if (frameReply == null) {
+                out.put(chunk);
+            }
+        }
+
+        public void onFrameEnd(long seq) {
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            if (out.writeTo(channel)) {
+                if (closeAfterFlush) {
+                    close(key);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (out.pending() > MAX_PENDING_OUTPUT) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close(SelectionKey key) {
+            key.cancel();
+            out.release();
+            if (partialHello != null) {
+                BufferPool.SHARED.release(partialHello);
+                partialHello = null;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do for this client
+            }
+        }
+    }
+
+    private static final byte[] UPGRADE_HELLO;
+
+    static {
+        try {
+            UPGRADE_HELLO = encodeUTF(GreetingProtocol.UPGRADE);
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int offset, byte[] expected) {
+        if (buffer.limit() - offset < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
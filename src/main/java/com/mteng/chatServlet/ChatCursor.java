@@ -0,0 +1,55 @@
+package com.mteng.chatServlet;
+// ChatCursor.java
+
+/* Where a user has read to: the sequence number of the next
+   message in the public log, and of the next one in their own
+   inbox of private messages. It never changes; reading makes a
+   new one.
+
+   Its text form, "publicSeq.privateSeq", is what the message
+   stream sends as event ids.
+*/
+
+
+public class ChatCursor
+{
+  private final long publicSeq;
+  private final long privateSeq;
+
+
+  public ChatCursor(long publicSeq, long privateSeq)
+  { this.publicSeq = publicSeq;
+    this.privateSeq = privateSeq;
+  }
+
+  public long getPublicSeq()
+  {  return publicSeq;  }
+
+  public long getPrivateSeq()
+  {  return privateSeq;  }
+
+
+  public static ChatCursor parse(String s)
+  // the cursor written as s by toString(), or null if it is not one
+  { if (s == null)
+      return null;
+    int dot = s.indexOf('.');
+    if (dot == -1)
+      return null;
+    try {
+      long pub = Long.parseLong(s.substring(0, dot).trim());
+      long priv = Long.parseLong(s.substring(dot+1).trim());
+      if ((pub < 0) || (priv < 0))
+        return null;
+      return new ChatCursor(pub, priv);
+    }
+    catch (NumberFormatException ex) {
+      return null;
+    }
+  }  // end of parse()
+
+
+  public String toString()
+  {  return publicSeq + "." + privateSeq;  }
+
+}  // end of ChatCursor class
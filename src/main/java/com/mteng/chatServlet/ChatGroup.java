@@ -2,14 +2,29 @@ package com.mteng.chatServlet;
 // ChatGroup.java
 // Andrew Davison, April 2005, ad@fivedots.coe.psu.ac.th
 
-/* ChatGroup maintains two ArrayLists: chatUsers and messages.
+/* ChatGroup maintains the chat users and a message log.
 
-  chatUsers is an ArrayList of Chatter objects; each Chatter
-  object stores a client's name, UID, and the number of messages 
-  that they have currently read.
+  chatUsers is a list of Chatter objects, in arrival order;
+  each Chatter object stores a client's name, UID, inbox, and
+  how far they have read. They are also indexed by name, which
+  is how a user is looked up.
 
-  messages is an ArrayList of strings (chat messages).
-  When there are no users, the list is cleared.
+  Messages are stored as ChatMessage records (sender, recipient
+  and body), split once, when they are stored. A message may be
+  addressed to a single person by using the message format:
+          msg / toName
+  Such a private message goes only into the inboxes of its
+  sender and of toName; every other message goes into the
+  public log. So a read only ever touches messages the reader
+  may see, and never parses one.
+
+  The public log is a ChatLog ring buffer holding the last
+  mteng.chat.logCapacity messages (1024 by default); each inbox
+  holds the last mteng.chat.inboxCapacity (256). When there
+  are no users, the log is cleared: the next user to arrive
+  starts reading after the current last message. A user who
+  falls so far behind that unread messages are overwritten is
+  told how many were missed by a GAP line in their next read.
 
   A new user is only added if there is no other user
   with the same name.
@@ -17,165 +32,331 @@ package com.mteng.chatServlet;
   Most operations depend on there being a Chatter object with
   a specified name and UID.
 
-  All the public methods are synchronized since there may be many
-  doGet() servlet threads wishing to access the ChatGroup object
-  at the same time.
+  Many doGet() servlet threads may use the ChatGroup object at
+  the same time, most of them polling with read(). Only arrivals
+  and departures take a lock, and only against each other.
+  Messages are appended to the log with one atomic increment,
+  and each reader scans from its own cursor, so readers never
+  block each other or the writers.
+
+  Readers that would rather wait for messages than poll for
+  them register a Waiter, which is told after every message
+  is stored.
+
+  Polling is cheap: writeUnread() returns at once, without
+  building anything, when nothing has been stored since the
+  user's last read, and otherwise writes the messages' shared,
+  pre-encoded lines straight to the response, gathering them in
+  lists that each thread keeps and reuses.
 */
 
-import java.util.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 public class ChatGroup
 {
-  private ArrayList chatUsers;
-  private ArrayList messages;
-  private int numUsers;
+  // starts the line telling a reader how many messages they missed
+  public static final String GAP = "(missed) ";
+
+  private final List<Chatter> chatUsers;
+  private final ConcurrentHashMap<String, Chatter> usersByName;
+  private final Object usersLock = new Object();
+
+  private final ChatLog messages;    // the public log
+  private final int inboxCapacity;
+  private volatile long firstSeq;    // read from here by new users
+  private final Set<Waiter> waiters;
+
+  // a thread's lists for writeUnread(), reused from one read to the next
+  private static final ThreadLocal<List<List<ChatMessage>>> scratch =
+    new ThreadLocal<List<List<ChatMessage>>>() {
+      protected List<List<ChatMessage>> initialValue()
+      { List<List<ChatMessage>> lists = new ArrayList<List<ChatMessage>>(3);
+        for (int i = 0; i < 3; i++)
+          lists.add( new ArrayList<ChatMessage>() );
+        return lists;
+      }
+    };
+
+
+  public interface Waiter
+  /* Told that messages may have arrived. Called on the thread
+     that stored them, so it should hand any real work over to
+     another thread. */
+  {  void messagesArrived();  }
 
 
   public ChatGroup()
-  {  chatUsers = new ArrayList();  
-     messages = new ArrayList();
-     numUsers = 0;
+  {  chatUsers = new CopyOnWriteArrayList<Chatter>();
+     usersByName = new ConcurrentHashMap<String, Chatter>();
+     messages = new ChatLog( Integer.getInteger("mteng.chat.logCapacity", 1024) );
+     inboxCapacity = Integer.getInteger("mteng.chat.inboxCapacity", 256);
+     firstSeq = 0;
+     waiters = Collections.newSetFromMap(new ConcurrentHashMap<Waiter, Boolean>());
   }
 
 
-  synchronized public int addUser(String name)
+  public int addUser(String name)
   // adds a user, returns UID if okay, -1 otherwise
-  {
-    if (numUsers == 0)   // no one logged in
-      messages.clear();
-
-    if (isUniqueName(name)) {
-      Chatter c = new Chatter(name);
-      chatUsers.add(c);  
-      messages.add("(" + name + ") has arrived");
-      numUsers++;
-      return c.getUID();
-    }
-    return -1;
-  }
+  { Chatter c;
+    synchronized (usersLock) {
+      if (usersByName.containsKey(name))
+        return -1;
 
+      if (chatUsers.isEmpty())   // no one logged in
+        firstSeq = messages.getNextSeq();
 
-  private boolean isUniqueName(String name)
-  /* Returns true if there is no existing Chatter object with
-     the given name. */
-  { Chatter c;
-    for(int i=0; i < chatUsers.size(); i++) {
-      c = (Chatter) chatUsers.get(i);
-      if ( c.getUserName().equals(name) )
-        return false;
+      c = new Chatter(name, Math.max(firstSeq, messages.getOldestSeq()), inboxCapacity);
+      usersByName.put(name, c);
+      chatUsers.add(c);
+      messages.append(name, null, "has arrived", -1);
     }
-    return true;
-  }  // end of findUser()
+    signalWaiters();
+    return c.getUID();
+  }  // end of addUser()
 
 
 
-  synchronized public boolean delUser(String name, int uid)
+  public boolean delUser(String name, int uid)
   // delete the specified user
   { if (uid == -1)
       return false;
 
-    Chatter c;
-    for(int i=0; i < chatUsers.size(); i++) {
-      c = (Chatter) chatUsers.get(i);
-      if (c.matches(name, uid)) {
-        chatUsers.remove(i);
-        messages.add("(" + name + ") has departed");
-        numUsers--;
-        return true;
-      }
+    synchronized (usersLock) {
+      Chatter c = findUser(name, uid);
+      if (c == null)
+        return false;
+      usersByName.remove(name);
+      chatUsers.remove(c);
+      messages.append(name, null, "has departed", -1);
     }
-    return false;
+    signalWaiters();
+    return true;
   }  // end of delUser()
 
 
   private Chatter findUser(String name, int uid)
   // returns Chatter object if it exists, null otherwise
-  { if (uid == -1)
+  { if (uid == -1 || name == null)
       return null;
 
-    Chatter c;
-    for(int i=0; i < chatUsers.size(); i++) {
-      c = (Chatter) chatUsers.get(i);
-      if (c.matches(name, uid))
-        return c;
-    }
+    Chatter c = usersByName.get(name);
+    if (c != null && c.matches(name, uid))
+      return c;
     return null;
   }  // end of findUser()
 
 
 
-  synchronized public boolean storeMessage(String name, int uid, String msg)
-  /* Add msg to the messages list. It is up to the clients
+  public boolean storeMessage(String name, int uid, String msg)
+  /* Add msg to the public log, or if it is addressed to someone,
+     to their inbox and the sender's. It is up to the clients
      to read it by sending "read" messages.
   */
   { Chatter c = findUser(name, uid);
-    if (c != null) {
-      messages.add("(" + name + ") " + msg);
-      return true;
+    if (c == null)
+      return false;
+
+    String toName = recipientOf(msg);
+    if (toName == null)
+      messages.append(name, null, msg, -1);
+    else {
+      long publicSeq = messages.getNextSeq();   // sent before this public message
+      c.getInbox().append(name, toName, msg, publicSeq);
+      Chatter to = toName.equals(name) ? null : usersByName.get(toName);
+      if (to != null)
+        to.getInbox().append(name, toName, msg, publicSeq);
     }
-    return false;
+    signalWaiters();
+    return true;
   }  // end of storeMessage()
 
 
-  synchronized public String read(String name, int uid)
-  /* Read all the unread messages since the last "read" message.
+  private String recipientOf(String msg)
+  // the name after a '/', or null if the message is public
+  { int index = msg.indexOf("/");
+    if (index == -1)  // no '/', so message is public
+      return null;
+    return msg.substring(index+1).trim();
+  }  // end of recipientOf()
 
-     A message may be invisible -- it may be addressed to a
-     single person by using the message format:
-          msg / toName
 
-     Message of this kind are not added to the list returned
-     to the client.
+  public void addWaiter(Waiter w)
+  {  waiters.add(w);  }
+
+  public void removeWaiter(Waiter w)
+  {  waiters.remove(w);  }
+
+
+  private void signalWaiters()
+  { for (Waiter w : waiters)
+      w.messagesArrived();
+  }  // end of signalWaiters()
+
+
+
+  public String read(String name, int uid)
+  /* Read all the unread messages since the last "read" message:
+     the public ones, and the private ones to or from this user.
+
+     If messages were overwritten before the user could read
+     them, the result starts with a line such as
+          (missed) 12 messages
   */
-  { StringBuffer msgs = new StringBuffer();
-    Chatter c = findUser(name, uid);
-
-    if (c != null) {
-      int msgsIndex = c.getMsgsIndex();  // where read to last time
-      String msg;
-      for(int i=msgsIndex; i < messages.size(); i++) {
-        msg = (String) messages.get(i);
-        if (isVisibleMsg(msg, name))
-          msgs.append( msg + "\n" );
-      }
-      c.setMsgsIndex( messages.size() );  // update client's read index
-    }
+  { List<ChatMessage> visible = new ArrayList<ChatMessage>();
+    readFrom(name, uid, null, visible);
+
+    StringBuilder msgs = new StringBuilder();
+    for (ChatMessage msg : visible)
+      msgs.append( msg.getText() ).append('\n');
     return msgs.toString();
   }  // end of read()
 
 
-  private boolean isVisibleMsg(String msg, String name)
-  /* A message is visible if it has no "/ name" part, or 
-     "/ name" is the user, or the message is _from_ the user.
+
+  public int writeUnread(String name, int uid, OutputStream out)
+    throws IOException
+  /* Write the lines that read() would return to out, returning
+     how many there were: 0 if there were none, or there is no
+     such user. */
+  { Chatter c = findUser(name, uid);
+    if (c == null)
+      return 0;
+    ChatCursor cursor = c.getCursor();
+    if ((cursor.getPublicSeq() >= messages.getNextSeq()) &&
+        (cursor.getPrivateSeq() >= c.getInbox().getNextSeq()))
+      return 0;   // nothing stored since the last read
+
+    List<List<ChatMessage>> lists = scratch.get();
+    List<ChatMessage> visible = lists.get(0);
+    try {
+      readFrom(c, null, visible, lists.get(1), lists.get(2));
+      for (ChatMessage msg : visible)
+        out.write( msg.getLine() );
+      return visible.size();
+    }
+    finally {   // don't hold on to the messages
+      for (List<ChatMessage> list : lists)
+        list.clear();
+    }
+  }  // end of writeUnread()
+
+
+
+  public ChatCursor readFrom(String name, int uid, ChatCursor from,
+                             List<ChatMessage> visible)
+  /* Add the messages visible to the user from cursor from
+     onwards to visible, in the order they were sent, preceded
+     by gap messages if some were overwritten before they could
+     be read. A null from reads on from the last "read" message,
+     and so does a from past the end of the public log or the
+     user's inbox (such as a bogus or out of date event id), so
+     the user's cursor never moves beyond what has been stored.
+     A from before the user joined reads from where they joined,
+     so an old event id cannot replay an earlier conversation.
+
+     Returns the cursor to read from next time, or null if there
+     is no such user. The user's own cursor is moved on to it
+     too, as far as it is behind.
+
+     If another read by the same user from their cursor overlaps
+     this one, only one of them returns the new messages; this
+     one starts over from wherever the other stopped.
   */
-  {
-    int index = msg.indexOf("/");
-    if (index == -1)  // no '/', so message is public
-      return true;
-
-    // does have a "/ name" part
-    String toName = msg.substring(index+1).trim();
-    if (toName.equals(name))  // for this user
-      return true;
-    else {   // for another user
-      if (msg.startsWith("("+name))   // but from this user
-        return true;
-      else     // from someone else
-        return false;
+  { Chatter c = findUser(name, uid);
+    if (c == null)
+      return null;
+    return readFrom(c, from, visible, new ArrayList<ChatMessage>(),
+                    new ArrayList<ChatMessage>());
+  }  // end of readFrom()
+
+
+  private ChatCursor readFrom(Chatter c, ChatCursor from, List<ChatMessage> visible,
+                              List<ChatMessage> pub, List<ChatMessage> priv)
+  // pub and priv are lists to collect each log's messages in
+  { ChatCursor cursor, start, next;
+    do {
+      pub.clear();
+      priv.clear();
+      cursor = c.getCursor();  // where read to last time
+      start = ((from == null) || isAhead(c, from)) ? cursor : sinceJoined(c, from);
+      next = new ChatCursor( messages.read(start.getPublicSeq(), pub),
+                             c.getInbox().read(start.getPrivateSeq(), priv) );
+    } while (!c.advanceCursor(cursor, furthest(cursor, next)));  // update client's read position
+
+    addGap(visible, start.getPublicSeq(), next.getPublicSeq(), pub.size());
+    addGap(visible, start.getPrivateSeq(), next.getPrivateSeq(), priv.size());
+    merge(pub, priv, visible);
+    return next;
+  }  // end of readFrom()
+
+
+  public ChatCursor getCursor(String name, int uid)
+  // where the user has read to, or null if there is no such user
+  { Chatter c = findUser(name, uid);
+    return (c == null) ? null : c.getCursor();
+  }  // end of getCursor()
+
+
+  private boolean isAhead(Chatter c, ChatCursor from)
+  // true if from is past the messages stored so far
+  { return (from.getPublicSeq() > messages.getNextSeq()) ||
+           (from.getPrivateSeq() > c.getInbox().getNextSeq());
+  }  // end of isAhead()
+
+
+  private ChatCursor sinceJoined(Chatter c, ChatCursor from)
+  // from, moved on to the first public message c may read
+  { if (from.getPublicSeq() >= c.getFirstPublicSeq())
+      return from;
+    return new ChatCursor(c.getFirstPublicSeq(), from.getPrivateSeq());
+  }  // end of sinceJoined()
+
+
+  private ChatCursor furthest(ChatCursor a, ChatCursor b)
+  { return new ChatCursor( Math.max(a.getPublicSeq(), b.getPublicSeq()),
+                           Math.max(a.getPrivateSeq(), b.getPrivateSeq()) );
+  }  // end of furthest()
+
+
+  private void addGap(List<ChatMessage> visible, long start, long next, int read)
+  // add a gap message if fewer messages were read than the cursor moved
+  { long missed = next - start - read;
+    if (missed > 0)
+      visible.add( ChatMessage.gap(start, missed) );
+  }  // end of addGap()
+
+
+  private void merge(List<ChatMessage> pub, List<ChatMessage> priv,
+                     List<ChatMessage> visible)
+  /* Add both lists to visible in the order they were sent: a
+     private message goes before the public message it was
+     sent ahead of. */
+  { int i = 0;
+    for (ChatMessage msg : priv) {
+      while ((i < pub.size()) && (pub.get(i).getSeq() < msg.getPublicSeq()))
+        visible.add( pub.get(i++) );
+      visible.add(msg);
     }
-  }  // end of isVisibleMsg()
+    while (i < pub.size())
+      visible.add( pub.get(i++) );
+  }  // end of merge()
 
 
 
-  synchronized public String who()
+  public String who()
   //  Returns a list of who is currently logged on
-  { Chatter c;
-    StringBuffer whoList = new StringBuffer();
-    for(int i=0; i < chatUsers.size(); i++) {
-      c = (Chatter) chatUsers.get(i);
-      whoList.append("" + (i+1) + ". " + c.getUserName() + "\n");
-    }
+  { StringBuilder whoList = new StringBuilder();
+    int i = 0;
+    for (Chatter c : chatUsers)   // a snapshot, never blocks
+      whoList.append("" + (++i) + ". " + c.getUserName() + "\n");
     return whoList.toString();
   }  // end of who()
 
@@ -0,0 +1,91 @@
+package com.mteng.chatServlet;
+// ChatLog.java
+
+/* ChatLog is a fixed-capacity ring buffer of ChatMessage objects,
+   addressed by a 64-bit sequence number that only ever increases.
+   Message seq lives in slot (seq mod capacity), so once a room
+   has seen capacity messages, each new one replaces the oldest
+   and memory stays flat however long the room runs.
+
+   Writers claim a sequence number with one atomic increment and
+   then store the message in its slot. Readers take no lock: a
+   slot holding an older sequence number has not been written yet,
+   so the read stops there; one holding a newer number has been
+   reused, so the reader has fallen behind and the messages it
+   missed are skipped.
+*/
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+public class ChatLog
+{
+  private final AtomicReferenceArray<ChatMessage> slots;
+  private final int mask;
+  private final AtomicLong nextSeq = new AtomicLong();
+
+
+  public ChatLog(int capacity)
+  // capacity is rounded up to a power of 2
+  { int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    slots = new AtomicReferenceArray<ChatMessage>(size);
+    mask = size - 1;
+  }
+
+
+  public int getCapacity()
+  {  return mask + 1;  }
+
+  public long getNextSeq()
+  // the sequence number the next message will get
+  {  return nextSeq.get();  }
+
+  public long getOldestSeq()
+  // the oldest sequence number still held, or about to be
+  {  return Math.max(0, nextSeq.get() - getCapacity());  }
+
+
+
+  public long append(String sender, String recipient, String body, long publicSeq)
+  /* Store a message, returning its sequence number. For a
+     public message, pass -1 as publicSeq: it is the same as
+     the sequence number. */
+  { long seq = nextSeq.getAndIncrement();
+    ChatMessage msg = new ChatMessage(seq, (publicSeq < 0) ? seq : publicSeq,
+                                      sender, recipient, body);
+    int i = (int) (seq & mask);
+    while (true) {
+      ChatMessage current = slots.get(i);
+      if (current != null && current.getSeq() > seq)
+        return seq;   // so late that the slot was already reused
+      if (slots.compareAndSet(i, current, msg))
+        return seq;
+    }
+  }  // end of append()
+
+
+
+  public long read(long from, List<ChatMessage> msgs)
+  /* Add the messages from sequence number from onwards to msgs,
+     stopping at the first one not yet stored. Returns the
+     sequence number to read from next time; any difference
+     between it and from not accounted for by msgs are messages
+     that were overwritten before they could be read.
+  */
+  { long seq = Math.max(from, getOldestSeq());
+    while (true) {
+      ChatMessage msg = slots.get((int) (seq & mask));
+      if (msg == null || msg.getSeq() < seq)   // not written yet
+        return seq;
+      if (msg.getSeq() > seq)    // lapped while reading
+        seq = Math.max(seq + 1, getOldestSeq());
+      else {
+        msgs.add(msg);
+        seq++;
+      }
+    }
+  }  // end of read()
+
+}  // end of ChatLog class
@@ -0,0 +1,93 @@
+package com.mteng.chatServlet;
+// ChatMessage.java
+
+/* One chat message, as stored in a ChatLog: who sent it, who it
+   is for (null if it is for everyone), and the body. The text
+   shown to readers, "(sender) body", is put together once when
+   the message is stored, so reading never parses or builds it.
+   So is its line: the text and a '\n', encoded as UTF-8, which
+   every reader of the message writes out as it is.
+
+   seq is the message's sequence number in the log it is stored
+   in. A private message is stored in the inboxes of its sender
+   and recipient, and also remembers publicSeq: the sequence
+   number the next public message had when it was sent, which
+   places it among the public messages.
+
+   Messages never change once stored, so a reader that has
+   fetched one may keep using it after its slot is reused.
+
+   A gap message is never stored: a read makes one up to say
+   that some messages from seq on, in the public log or the
+   reader's inbox, were overwritten unread.
+*/
+
+
+import java.nio.charset.Charset;
+
+
+public class ChatMessage
+{
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final long seq;
+  private final long publicSeq;
+  private final String sender;
+  private final String recipient;
+  private final String body;
+  private final String text;
+  private final byte[] line;
+  private final boolean gap;
+
+
+  public ChatMessage(long seq, long publicSeq, String sender,
+                     String recipient, String body)
+  {  this(seq, publicSeq, sender, recipient, body,
+          "(" + sender + ") " + body, false);  }
+
+  private ChatMessage(long seq, long publicSeq, String sender, String recipient,
+                      String body, String text, boolean gap)
+  { this.seq = seq;
+    this.publicSeq = publicSeq;
+    this.sender = sender;
+    this.recipient = recipient;
+    this.body = body;
+    this.text = text;
+    this.line = (text + "\n").getBytes(UTF_8);
+    this.gap = gap;
+  }
+
+  public static ChatMessage gap(long seq, long missed)
+  {  return new ChatMessage(seq, seq, null, null, null,
+                            ChatGroup.GAP + missed + " messages", true);  }
+
+
+  public long getSeq()
+  {  return seq;  }
+
+  public long getPublicSeq()
+  {  return publicSeq;  }
+
+  public String getSender()
+  {  return sender;  }
+
+  public String getRecipient()
+  {  return recipient;  }
+
+  public String getBody()
+  {  return body;  }
+
+  public String getText()
+  {  return text;  }
+
+  public byte[] getLine()
+  // shared by every reader, so it must not be changed
+  {  return line;  }
+
+  public boolean isPublic()
+  {  return recipient == null;  }
+
+  public boolean isGap()
+  {  return gap;  }
+
+}  // end of ChatMessage class
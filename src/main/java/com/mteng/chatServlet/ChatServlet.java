@@ -25,6 +25,23 @@ package com.mteng.chatServlet;
         // this retrieves all the visible messages stored on
            the server since the last read
 
+    * ChatServlet?cmd=read&name=??&wait=ms  + uid cookie
+        // a long poll: as read, but if there are no new
+           messages the request is parked (with Servlet 3.0
+           async) until some arrive or wait ms pass (at most
+           MAX_WAIT), when it returns an empty answer
+
+    * ChatServlet?cmd=stream&name=??  + uid cookie
+        // keeps the response open as a text/event-stream and
+           pushes each visible message as an event as soon as
+           it is stored, with the user's ChatCursor after it as
+           the event id. A client that reconnects with a Last-Event-ID
+           header (or lastEventId parameter) carries on after
+           that message; an id past the newest message is
+           ignored. Messages lost to the message log
+           come as a "gap" event. The stream is ended after
+           STREAM_TIME; EventSource clients then reconnect.
+
   Most messages require a user name and a UID to identify 
   the client. The UID is allocated to the client when he
   sends a "hi" message.
@@ -37,10 +54,21 @@ package com.mteng.chatServlet;
 import javax.servlet.*;
 import javax.servlet.http.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 
 public class ChatServlet extends HttpServlet 
 {
+   private static final long MAX_WAIT = 60000;   // ms a read may be parked
+   private static final long STREAM_TIME = 300000;   // ms a stream is kept open
+   private static final int RETRY_TIME = 2000;   // ms an EventSource waits to reconnect
+
+   // all the ways an event stream line can end, so none can start a field in a message
+   private static final Pattern LINE_BREAK = Pattern.compile("\r\n|\r|\n");
+
    private ChatGroup cg;   // for storing client information
 
    public void init() throws ServletException
@@ -65,6 +93,8 @@ public class ChatServlet extends HttpServlet
        processMsg(request, response);
      else if (command.equals("read"))
        processRead(request, response);
+     else if (command.equals("stream"))
+       processStream(request, response);
      else
        System.out.println("Did not understand command: " + command);
    }  // end of doGet()
@@ -195,10 +225,13 @@ public class ChatServlet extends HttpServlet
   private void processRead(HttpServletRequest request,
                          HttpServletResponse response)
     throws IOException
-  /* Message format: ChatServlet?cmd=read&name=??  + uid cookie
+  /* Message format: ChatServlet?cmd=read&name=??[&wait=ms]  + uid cookie
 
      All the visible messages stored by the server since 
-     the last read by this user are sent back to him.
+     the last read by this user are sent back to him, as
+     UTF-8 lines written straight from the message log.
+     If there are none and wait is given, the answer waits
+     for them, for up to wait ms.
   */
   { int uid = -1;   // default for failure
     String userName = request.getParameter("name");
@@ -206,16 +239,265 @@ public class ChatServlet extends HttpServlet
     if (userName != null)
       uid = getUidFromCookie(request);
 
-    PrintWriter output = response.getWriter();
-    if (uid != -1) {
-      output.print( cg.read(userName, uid) );   // already has a '\n'
-      output.flush();
-    }
-    else
+    if (uid == -1) {
+      PrintWriter output = response.getWriter();
       output.println("no");   // something wrong
+      output.close();
+      return;
+    }
+
+    response.setContentType("text/plain; charset=UTF-8");
+    OutputStream output = response.getOutputStream();
+    int numRead = cg.writeUnread(userName, uid, output);
+    long wait = getWait(request);
+    if ((numRead == 0) && (wait > 0) && request.isAsyncSupported()) {
+      AsyncContext ac = request.startAsync();
+      ac.setTimeout(wait);
+      PendingRead pr = new PendingRead(ac, userName, uid);
+      ac.addListener(pr);
+      cg.addWaiter(pr);
+      pr.respondIfUnread();   // in case a message came before addWaiter()
+      return;
+    }
+
     output.close();
   }  // end of processRead()
 
 
+  private long getWait(HttpServletRequest request)
+  // the wait parameter in ms, or 0 if there is none
+  { String wait = request.getParameter("wait");
+    if (wait == null)
+      return 0;
+    try {
+      return Math.min(Long.parseLong(wait), MAX_WAIT);
+    }
+    catch (NumberFormatException ex) {
+      return 0;
+    }
+  }  // end of getWait()
+
+
+
+  private void processStream(HttpServletRequest request,
+                         HttpServletResponse response)
+    throws IOException
+  /* Message format: ChatServlet?cmd=stream&name=??  + uid cookie
+                     [+ Last-Event-ID header]
+
+     Streams the messages visible to this user as server-sent
+     events, starting after the Last-Event-ID message if there
+     is one (and it has been stored), or else after the last read.
+  */
+  { int uid = -1;   // default for failure
+    String userName = request.getParameter("name");
+
+    if (userName != null)
+      uid = getUidFromCookie(request);
+
+    ChatCursor from = getResumeCursor(request);
+    if (from == null)
+      from = cg.getCursor(userName, uid);   // null if no such user
+
+    if ((uid == -1) || (from == null) || !request.isAsyncSupported()) {
+      PrintWriter output = response.getWriter();
+      output.println("no");   // something wrong
+      output.close();
+      return;
+    }
+
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    AsyncContext ac = request.startAsync();
+    ac.setTimeout(STREAM_TIME);
+    MessageStream ms = new MessageStream(ac, response.getWriter(),
+                                         userName, uid, from);
+    ac.addListener(ms);
+    cg.addWaiter(ms);
+    ms.push();   // what is there already, and the retry time
+  }  // end of processStream()
+
+
+  private ChatCursor getResumeCursor(HttpServletRequest request)
+  // the cursor sent as Last-Event-ID, or null if there is none
+  { String lastId = request.getHeader("Last-Event-ID");
+    if (lastId == null)
+      lastId = request.getParameter("lastEventId");
+    return ChatCursor.parse(lastId);
+  }  // end of getResumeCursor()
+
+
+
+  private class MessageStream implements ChatGroup.Waiter, AsyncListener
+  /* One open event stream. Every push() sends the messages
+     stored since the last one, and a burst of messages schedules
+     only one push at a time.
+  */
+  {
+    private final AsyncContext ac;
+    private final PrintWriter output;
+    private final String userName;
+    private final int uid;
+    private ChatCursor next;
+    private boolean started = false;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean done = false;
+
+    MessageStream(AsyncContext ac, PrintWriter output,
+                  String userName, int uid, ChatCursor next)
+    { this.ac = ac;
+      this.output = output;
+      this.userName = userName;
+      this.uid = uid;
+      this.next = next;
+    }
+
+    public void messagesArrived()
+    /* called by the writer's thread, so push on a container thread,
+       unless a push is already waiting to run */
+    { if (done || !scheduled.compareAndSet(false, true))
+        return;
+      try {
+        ac.start(new Runnable() {
+          public void run()
+          {  push();  }
+        });
+      }
+      catch (IllegalStateException ex)
+      { }   // ended meanwhile
+    }
+
+    synchronized void push()
+    { scheduled.set(false);   // messages from now on need another push
+      if (done)
+        return;
+      if (!started) {
+        output.print("retry: " + RETRY_TIME + "\n\n");
+        started = true;
+      }
+      List<ChatMessage> msgs = new ArrayList<ChatMessage>();
+      ChatCursor from = next;
+      next = cg.readFrom(userName, uid, from, msgs);
+      if (next == null) {   // the user has left
+        end();
+        return;
+      }
+      long pub = from.getPublicSeq();
+      long priv = from.getPrivateSeq();
+      for (ChatMessage msg : msgs) {
+        if (msg.isGap())
+          output.print("event: gap\n");
+        else {
+          if (msg.isPublic())
+            pub = msg.getSeq() + 1;
+          else
+            priv = msg.getSeq() + 1;
+          output.print("id: " + pub + "." + priv + "\n");
+        }
+        output.print("data: " + LINE_BREAK.matcher(msg.getText()).replaceAll("\ndata: ") + "\n\n");
+      }
+      output.flush();
+      if (output.checkError())   // the client has gone
+        end();
+    }
+
+    public synchronized void onTimeout(AsyncEvent event)
+    {  end();  }
+
+    public synchronized void onError(AsyncEvent event)
+    { done = true;
+      cg.removeWaiter(this);
+    }
+
+    public void onComplete(AsyncEvent event)
+    {  cg.removeWaiter(this);  }
+
+    public void onStartAsync(AsyncEvent event)
+    { }
+
+    private void end()
+    { done = true;
+      cg.removeWaiter(this);
+      ac.complete();
+    }
+  }  // end of MessageStream class
+
+
+
+  private class PendingRead implements ChatGroup.Waiter, AsyncListener
+  /* A parked long-poll read. It is answered by whichever comes
+     first: the first read that finds visible messages, or the
+     timeout, which answers with nothing. Messages addressed to
+     other users wake it but leave it parked. A burst of messages
+     schedules only one read at a time.
+  */
+  {
+    private final AsyncContext ac;
+    private final String userName;
+    private final int uid;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean done = false;
+
+    PendingRead(AsyncContext ac, String userName, int uid)
+    { this.ac = ac;
+      this.userName = userName;
+      this.uid = uid;
+    }
+
+    public void messagesArrived()
+    /* called by the writer's thread, so read on a container thread,
+       unless a read is already waiting to run */
+    { if (done || !scheduled.compareAndSet(false, true))
+        return;
+      try {
+        ac.start(new Runnable() {
+          public void run()
+          {  respondIfUnread();  }
+        });
+      }
+      catch (IllegalStateException ex)
+      { }   // answered meanwhile
+    }
+
+    synchronized void respondIfUnread()
+    { scheduled.set(false);   // messages from now on need another read
+      if (done)
+        return;
+      try {
+        if (cg.writeUnread(userName, uid, ac.getResponse().getOutputStream()) > 0)
+          respond();
+      }
+      catch (IOException ex) {
+        System.out.println(ex);
+        respond();
+      }
+    }
+
+    public synchronized void onTimeout(AsyncEvent event)
+    { if (!done)
+        respond();   // with nothing
+    }
+
+    public synchronized void onError(AsyncEvent event)
+    { done = true;
+      cg.removeWaiter(this);
+    }
+
+    public void onComplete(AsyncEvent event)
+    {  cg.removeWaiter(this);  }
+
+    public void onStartAsync(AsyncEvent event)
+    { }
+
+    private void respond()
+    // end the answer, with whatever has been written to it
+    { done = true;
+      cg.removeWaiter(this);
+      ac.complete();
+    }
+  }  // end of PendingRead class
+
+
 } // end of ChatServlet class
 
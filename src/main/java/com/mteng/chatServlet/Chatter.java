@@ -3,25 +3,40 @@ package com.mteng.chatServlet;
 // Andrew Davison, April 2005, ad@fivedots.coe.psu.ac.th
 
 /* Store information about a single client:
-      the user's name, their UID, and the current number
-      of messages read from the chat messages list
+      the user's name, their UID, their inbox of private
+      messages, and a cursor saying how far they have read
+      in the public chat log and in their inbox
 
    The UID is a random integer between 0 and ID_MAX.
+
+   A client never reads public messages from before firstPublicSeq,
+   where the log stood when they joined.
+
+   The cursor is only moved forward with a compare-and-set,
+   so two overlapping reads by the same client cannot both
+   return the same messages.
 */
 
+import java.util.concurrent.atomic.AtomicReference;
+
+
 public class Chatter
 {
   private static final int ID_MAX = 1024;
 
   private String userName;
   private int uid;
-  private int msgsIndex;
+  private final long firstPublicSeq;
+  private final ChatLog inbox;
+  private final AtomicReference<ChatCursor> cursor;
 
 
-  public Chatter(String nm)
+  public Chatter(String nm, long firstPublicSeq, int inboxCapacity)
   { userName = nm;
     uid = (int) Math.round( Math.random()* ID_MAX);
-    msgsIndex = 0;
+    this.firstPublicSeq = firstPublicSeq;
+    inbox = new ChatLog(inboxCapacity);
+    cursor = new AtomicReference<ChatCursor>( new ChatCursor(firstPublicSeq, 0) );
   }
 
   public String getUserName()
@@ -30,11 +45,20 @@ public class Chatter
   public int getUID()
   { return uid;  }
 
-  public int getMsgsIndex()
-  {  return msgsIndex;  }
+  public long getFirstPublicSeq()
+  // the first public message this user may read
+  {  return firstPublicSeq;  }
+
+  public ChatLog getInbox()
+  // the private messages to and from this user
+  {  return inbox;  }
+
+  public ChatCursor getCursor()
+  {  return cursor.get();  }
 
-  public void setMsgsIndex(int newIndex)
-  {  msgsIndex = newIndex;  }
+  public boolean advanceCursor(ChatCursor from, ChatCursor to)
+  // false if another read moved it on first
+  {  return cursor.compareAndSet(from, to);  }
 
   public boolean matches(String nm, int id)
   {  return (userName.equals(nm) && (uid == id));  }
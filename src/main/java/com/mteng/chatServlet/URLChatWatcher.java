@@ -2,12 +2,24 @@ package com.mteng.chatServlet;
 // URLChatWatcher.java
 // Andrew Davison, April 2005, ad@fivedots.coe.psu.ac.th
 
-/* A threaded URLChatWatcher object periodically sends a "read" 
-   message to the ChatServlet:
-      ChatServlet?cmd=read&name=??  + uid cookie
+/* A threaded URLChatWatcher object keeps a long-poll "read"
+   message open to the ChatServlet:
+      ChatServlet?cmd=read&name=??&wait=??  + uid cookie
 
   The response is all the visible messages that have not
-  already been read, or "no".
+  already been read, or "no". The servlet holds the request
+  until there are some, or WAIT_TIME passes, so messages show
+  up as soon as they are sent; the next read goes out at once.
+  A server that answers empty reads straight away is polled
+  every SLEEP_TIME instead.
+
+  Run with -Dmteng.chat.stream=true, the watcher instead keeps
+  one "stream" request open:
+      ChatServlet?cmd=stream&name=??  + uid cookie
+  and shows each server-sent event as it arrives. When the
+  server ends the stream, the watcher reconnects, passing the
+  id of the last event seen as Last-Event-ID so nothing is
+  missed or repeated.
 
   The messages are displayed in the top-level client's 
   text area by calling its showMsg() method.
@@ -24,7 +36,10 @@ import java.net.*;
 
 public class URLChatWatcher extends Thread
 {
-  private static final int SLEEP_TIME = 2000;    // 2 secs between pollings
+  private static final int WAIT_TIME = 25000;    // 25 secs, how long a read may be held
+  private static final int SLEEP_TIME = 2000;    // 2 secs between pollings, if not held
+  private static final int STREAM_TIMEOUT = 360000;   // 6 mins, longer than the server keeps a stream
+  private static final boolean STREAM = Boolean.getBoolean("mteng.chat.stream");
 //  private static final String SERVER = "http://localhost:8100/servlet/ChatServlet";
 //  private static final String SERVER = "http://localhost:8002/servlet/ChatServlet";
   private static final String SERVER = "http://172.29.128.99:8002/socketHelloWorld/ChatServlet";
@@ -32,6 +47,7 @@ public class URLChatWatcher extends Thread
   private URLChat client;
   private String userName;
   private String cookieStr = null;
+  private String lastEventId = null;   // of the last event streamed
 
 
   public URLChatWatcher(URLChat c, String nm, String cs)
@@ -43,7 +59,12 @@ public class URLChatWatcher extends Thread
 
   public void run()
   // Keep polling forever
-  { URL url;
+  { if (STREAM) {
+      stream();
+      return;
+    }
+
+    URL url;
     URLConnection conn;
     BufferedReader br;
     String line, response;
@@ -51,28 +72,32 @@ public class URLChatWatcher extends Thread
 
     try {
       String readRequest = SERVER + "?cmd=read&name=" +  
-							URLEncoder.encode(userName, "UTF-8") ;
+							URLEncoder.encode(userName, "UTF-8") + "&wait=" + WAIT_TIME;
       while(true) {
-        Thread.sleep(SLEEP_TIME);    
- 
+        long sentAt = System.currentTimeMillis();
         url  = new URL(readRequest);   // send a "read" message
         conn = url.openConnection();
+        conn.setReadTimeout(WAIT_TIME * 2);
     
         // Set the cookie value to send
         conn.setRequestProperty("Cookie", cookieStr);
     
 	    br = new BufferedReader(
-              new InputStreamReader( conn.getInputStream() ));	
+              new InputStreamReader( conn.getInputStream(), "UTF-8" ));
         resp = new StringBuffer();    // build up the response
+        boolean answered = false;
         while ((line = br.readLine()) != null) {
+          answered = true;
           if (!fromClient(line))   // if not from client
             resp.append(line+"\n"); 
         }
         br.close();
 
         response = resp.toString();
-        if ((response != null) && !response.equals("\n"))
+        if ((response != null) && (response.length() > 0) && !response.equals("\n"))
           client.showMsg(response);    // show the response
+        else if (!answered && (System.currentTimeMillis() - sentAt < SLEEP_TIME))
+          Thread.sleep(SLEEP_TIME);    // not held, so poll
       }
     }
     catch(Exception e)
@@ -82,6 +107,70 @@ public class URLChatWatcher extends Thread
   } // end of run()
 
 
+  private void stream()
+  // Keep a message stream open forever, reconnecting when it ends
+  { try {
+      String streamRequest = SERVER + "?cmd=stream&name=" +
+                              URLEncoder.encode(userName, "UTF-8");
+      while(true) {
+        URLConnection conn = new URL(streamRequest).openConnection();
+        conn.setReadTimeout(STREAM_TIMEOUT);
+        conn.setRequestProperty("Cookie", cookieStr);
+        conn.setRequestProperty("Accept", "text/event-stream");
+        if (lastEventId != null)
+          conn.setRequestProperty("Last-Event-ID", lastEventId);
+
+        BufferedReader br = new BufferedReader(
+              new InputStreamReader( conn.getInputStream(), "UTF-8" ));
+        String type = conn.getContentType();
+        if ((type == null) || !type.startsWith("text/event-stream")) {
+          br.close();
+          throw new IOException("No stream, got " + type);
+        }
+        readEvents(br);
+        br.close();
+      }
+    }
+    catch(Exception e)
+    { client.showMsg("Servlet Error: watching terminated\n");
+      System.out.println(e);
+    }
+  } // end of stream()
+
+
+  private void readEvents(BufferedReader br) throws IOException
+  /* Show each event until the stream ends. An event is a run of
+     "field: value" lines ended by a blank line; only its id and
+     data lines matter here, and lines starting with ':' are
+     comments. */
+  { StringBuffer data = new StringBuffer();
+    String id = null;
+    String line;
+    while ((line = br.readLine()) != null) {
+      if (line.length() == 0) {   // end of an event
+        if (id != null)
+          lastEventId = id;
+        if ((data.length() > 0) && !fromClient(data.toString()))
+          client.showMsg(data.toString());
+        data.setLength(0);
+        id = null;
+      }
+      else if (line.startsWith("data:"))
+        data.append(fieldValue(line)).append("\n");
+      else if (line.startsWith("id:"))
+        id = fieldValue(line);
+    }
+  }  // end of readEvents()
+
+
+  private String fieldValue(String line)
+  // the value of a "field: value" line, without the one optional space
+  { int colon = line.indexOf(':');
+    String value = line.substring(colon+1);
+    return value.startsWith(" ") ? value.substring(1) : value;
+  }  // end of fieldValue()
+
+
   private boolean fromClient(String line)
   // A line (message) is from a client if it begins with (Name)
   {
@@ -0,0 +1,76 @@
+package com.mteng.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns a small vocabulary of strings, such as device types, as dense int codes,
+ * so that each device only stores the code. Codes are assigned on first use and
+ * never reused; lookups in either direction take no lock.
+ */
+public final class CodeTable {
+    private final int maxCodes;
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[8];
+    private int size;
+
+    /**
+     * @param seeds values to assign the first codes to, in order
+     */
+    public CodeTable(int maxCodes, String... seeds) {
+        this.maxCodes = maxCodes;
+        for (String seed : seeds) {
+            codeOf(seed);
+        }
+    }
+
+    /**
+     * @return the code of {@code value}, assigning the next free one on first use
+     * @throws IllegalArgumentException if the table is full
+     */
+    public int codeOf(String value) {
+        int code = tryCodeOf(value);
+        if (code < 0) {
+            throw new IllegalArgumentException("More than " + maxCodes + " distinct values");
+        }
+        return code;
+    }
+
+    /**
+     * @return the code of {@code value}, assigning the next free one on first use, or
+     * -1 if it has none and the table is full
+     */
+    public int tryCodeOf(String value) {
+        Integer code = codes.get(value);
+        return code != null ? code : assign(value);
+    }
+
+    /**
+     * @return the value of {@code code}, or null for a negative code
+     */
+    public String valueOf(int code) {
+        return code < 0 ? null : values[code];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized int assign(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (size == maxCodes) {
+            return -1;
+        }
+        String[] current = values;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = value;
+        values = current;           // published before the code can be looked up
+        codes.put(value, size);
+        return size++;
+    }
+}
@@ -1,14 +1,45 @@
 package com.mteng.model;
 
+import java.nio.charset.Charset;
+
 /**
  * Created by mteng on 3/18/2015.
+ * <p>
+ * Kept compact for large fleets. The status is a bit, the type and room are codes
+ * into the shared {@link #TYPES} and {@link #ROOMS} tables, and the name and
+ * description share one UTF-8 byte array instead of being two strings. The getters
+ * and setters are a view over that: the text getters decode on every call, so cache
+ * their result rather than calling them in a loop.
+ * <p>
+ * The tables are shared and never forget a value, so clients cannot be allowed to
+ * fill them: once one is full, a device with a new type or room keeps its own copy of
+ * the string instead of a code.
  */
 public class Device {
+    public static final String ON = "On";
+    public static final String OFF = "Off";
+
+    /**
+     * Device types, seeded with those the web form offers.
+     */
+    public static final CodeTable TYPES =
+            new CodeTable(Short.MAX_VALUE, "Appliance", "Electronics", "Lights", "Other");
+    public static final CodeTable ROOMS = new CodeTable(Short.MAX_VALUE);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NO_TEXT = new byte[0];
+    private static final int ON_FLAG = 1;
+    private static final int NO_NAME = 2;
+    private static final int NO_DESCRIPTION = 4;
+
     private int id;
-    private String name;
-    private String status;
-    private String type;
-    private String description;
+    private byte flags = NO_NAME | NO_DESCRIPTION;
+    private short type = -1;
+    private short room = -1;
+    private int nameLength;
+    private byte[] text = NO_TEXT;      // name, then description
+    private String typeName;            // only when the type has no code
+    private String roomName;            // only when the room has no code
 
     public Device() {
     }
@@ -18,19 +49,39 @@ public class Device {
     }
 
     public String getName() {
-        return name;
+        return (flags & NO_NAME) != 0 ? null : new String(text, 0, nameLength, UTF_8);
     }
 
     public String getStatus() {
-        return status;
+        return isOn() ? ON : OFF;
+    }
+
+    public boolean isOn() {
+        return (flags & ON_FLAG) != 0;
     }
 
     public String getType() {
+        return typeName != null ? typeName : TYPES.valueOf(type);
+    }
+
+    /**
+     * @return the code of the type in {@link #TYPES}, or -1 if it has none or the
+     * table was full
+     */
+    public int getTypeCode() {
         return type;
     }
 
     public String getDescription() {
-        return description;
+        return (flags & NO_DESCRIPTION) != 0 ? null
+                : new String(text, nameLength, text.length - nameLength, UTF_8);
+    }
+
+    /**
+     * @return the room the device is in, or null if it has none
+     */
+    public String getRoom() {
+        return roomName != null ? roomName : ROOMS.valueOf(room);
     }
 
     public void setId(int id) {
@@ -38,18 +89,50 @@ public class Device {
     }
 
     public void setName(String name) {
-        this.name = name;
+        byte[] bytes = encode(name);
+        byte[] joined = new byte[bytes.length + text.length - nameLength];
+        System.arraycopy(bytes, 0, joined, 0, bytes.length);
+        System.arraycopy(text, nameLength, joined, bytes.length, text.length - nameLength);
+        text = joined;
+        nameLength = bytes.length;
+        setFlag(NO_NAME, name == null);
     }
 
+    /**
+     * Anything but {@link #ON} turns the device off.
+     */
     public void setStatus(String status) {
-        this.status = status;
+        setOn(ON.equals(status));
+    }
+
+    public void setOn(boolean on) {
+        setFlag(ON_FLAG, on);
     }
 
     public void setType(String type) {
-        this.type = type;
+        this.type = type == null ? -1 : (short) TYPES.tryCodeOf(type);
+        this.typeName = this.type < 0 ? type : null;
     }
 
     public void setDescription(String description) {
-        this.description = description;
+        byte[] bytes = encode(description);
+        byte[] joined = new byte[nameLength + bytes.length];
+        System.arraycopy(text, 0, joined, 0, nameLength);
+        System.arraycopy(bytes, 0, joined, nameLength, bytes.length);
+        text = joined;
+        setFlag(NO_DESCRIPTION, description == null);
+    }
+
+    public void setRoom(String room) {
+        this.room = room == null ? -1 : (short) ROOMS.tryCodeOf(room);
+        this.roomName = this.room < 0 ? room : null;
+    }
+
+    private void setFlag(int flag, boolean set) {
+        flags = (byte) (set ? flags | flag : flags & ~flag);
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? NO_TEXT : value.getBytes(UTF_8);
     }
 }
@@ -0,0 +1,27 @@
+package com.mteng.model;
+
+/**
+ * Selects devices by type, room and status. A criterion left null matches any
+ * device; a filter without criteria matches every device.
+ */
+public class DeviceFilter {
+    private final String type;
+    private final String room;
+    private final String status;
+
+    public DeviceFilter(String type, String room, String status) {
+        this.type = type;
+        this.room = room;
+        this.status = status;
+    }
+
+    public boolean isEmpty() {
+        return type == null && room == null && status == null;
+    }
+
+    public boolean matches(Device device) {
+        return (type == null || type.equals(device.getType()))
+                && (room == null || room.equals(device.getRoom()))
+                && (status == null || status.equals(device.getStatus()));
+    }
+}
@@ -0,0 +1,81 @@
+package com.mteng.model;
+
+import com.mteng.basicSocket.Options;
+import com.mteng.util.ConcurrentIntObjectMap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Measures the heap retained per device by a {@link DeviceRegistry}, against the
+ * same registry holding devices in the former layout of five strings each.
+ * <p>
+ * Options: devices=N (default 1000000). Devices are built the way the add command
+ * builds them: every string, the type included, is a fresh copy out of the parser.
+ * Run with a fixed heap (for example {@code -Xms2g -Xmx2g}) for stable numbers.
+ */
+public class DeviceMemoryBenchmark {
+    private static final String[] TYPES = {"Appliance", "Electronics", "Lights", "Other"};
+    private static final String[] ROOMS = {"Kitchen", "Living room", "Bedroom", "Garage", null};
+
+    /**
+     * The all-{@code String} device layout, kept only for comparison.
+     */
+    private static final class StringDevice {
+        int id;
+        String name;
+        String status;
+        String type;
+        String description;
+        String room;
+    }
+
+    public static void main(String[] args) {
+        int count = Options.parse(args, 0).getInt("devices", 1000000);
+
+        long before = usedHeap();
+        ConcurrentIntObjectMap<StringDevice> legacy = new ConcurrentIntObjectMap<>();
+        for (int i = 0; i < count; i++) {
+            StringDevice device = new StringDevice();
+            device.id = i;
+            device.name = copy("Device " + i);
+            device.status = copy(i % 3 == 0 ? "On" : "Off");
+            device.type = copy(TYPES[i % TYPES.length]);
+            device.description = copy("Added from the dashboard, unit " + i);
+            device.room = copy(ROOMS[i % ROOMS.length]);
+            legacy.put(i, device);
+        }
+        long legacyBytes = usedHeap() - before;
+        System.out.println("legacy size=" + legacy.size());
+        legacy = null;
+
+        before = usedHeap();
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int i = 0; i < count; i++) {
+            Device device = new Device();
+            device.setName(copy("Device " + i));
+            device.setStatus(copy(i % 3 == 0 ? "On" : "Off"));
+            device.setType(copy(TYPES[i % TYPES.length]));
+            device.setDescription(copy("Added from the dashboard, unit " + i));
+            device.setRoom(copy(ROOMS[i % ROOMS.length]));
+            registry.add(device);
+        }
+        long compactBytes = usedHeap() - before;
+        System.out.println("compact size=" + registry.size());
+
+        System.out.println(String.format("%d devices: string layout %d bytes/device, compact %d bytes/device (%.0f%%)",
+                count, legacyBytes / count, compactBytes / count, 100.0 * compactBytes / legacyBytes));
+    }
+
+    private static String copy(String value) {
+        return value == null ? null : new String(value.toCharArray());
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,101 @@
+package com.mteng.model;
+
+import com.mteng.util.ConcurrentIntObjectMap;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe store of the registered devices, indexed by id.
+ */
+public class DeviceRegistry {
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ConcurrentIntObjectMap<Device> devices = new ConcurrentIntObjectMap<>();
+
+    /**
+     * Assigns the next free id to {@code device} and registers it.
+     */
+    public Device add(Device device) {
+        device.setId(nextId.getAndIncrement());
+        devices.put(device.getId(), device);
+        return device;
+    }
+
+    /**
+     * Registers a device under the id it already has, as when restoring saved state.
+     * Ids handed out later are higher.
+     */
+    public void restore(Device device) {
+        devices.put(device.getId(), device);
+        advanceNextId(device.getId() + 1);
+    }
+
+    public int getNextId() {
+        return nextId.get();
+    }
+
+    /**
+     * Makes sure the next id handed out is at least {@code atLeast}.
+     */
+    public void advanceNextId(int atLeast) {
+        int current;
+        while ((current = nextId.get()) < atLeast && !nextId.compareAndSet(current, atLeast)) {
+            // retry
+        }
+    }
+
+    public Device get(int id) {
+        return devices.get(id);
+    }
+
+    /**
+     * @return the removed device, or null if there was none with that id
+     */
+    public Device remove(int id) {
+        return devices.remove(id);
+    }
+
+    /**
+     * Flips the device between "On" and "Off".
+     *
+     * @return the new status, or null if there was no device with that id
+     */
+    public String toggle(int id) {
+        Device device = devices.get(id);
+        if (device == null) {
+            return null;
+        }
+        synchronized (device) {
+            device.setOn(!device.isOn());
+            return device.getStatus();
+        }
+    }
+
+    /**
+     * Turns the device on or off.
+     *
+     * @return the new status, or null if there was no device with that id or it
+     * already had that status
+     */
+    public String setOn(int id, boolean on) {
+        Device device = devices.get(id);
+        if (device == null) {
+            return null;
+        }
+        synchronized (device) {
+            if (device.isOn() == on) {
+                return null;
+            }
+            device.setOn(on);
+            return device.getStatus();
+        }
+    }
+
+    public List<Device> getAll() {
+        return devices.values();
+    }
+
+    public int size() {
+        return devices.size();
+    }
+}
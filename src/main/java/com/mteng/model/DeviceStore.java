@@ -0,0 +1,473 @@
+package com.mteng.model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Durable copy of a {@link DeviceRegistry} on local disk: an append-only,
+ * memory-mapped log of changes plus a compacted snapshot.
+ * <p>
+ * Every add, toggle and remove is appended to the current log generation,
+ * {@code devices-<n>.log}, as a record prefixed with its length and CRC. Once the log
+ * grows past the compaction threshold, appends move on to generation n+1 and the
+ * state as of that moment is written to {@code devices.snapshot} in the background
+ * (to a temporary file renamed over the old one), after which older logs are deleted.
+ * <p>
+ * {@link #recover} loads the snapshot, then replays every log from the snapshot's
+ * generation on, stopping at the first torn or corrupt record. Records carry ids and
+ * absolute statuses, so replaying a change twice is harmless and a crash at any point
+ * of a compaction loses nothing.
+ * <p>
+ * The store also counts the changes recorded over its whole life. The snapshot saves
+ * the count and every record after it adds one, so a caller that numbers its changes
+ * the same way can carry on from {@link #getVersion} after a restart.
+ * <p>
+ * Appended records are in the page cache at once, so they survive a crash or a
+ * redeploy of the JVM; they are forced to disk on compaction and on {@link #close}.
+ * Appends must be serialized by the caller, which must also hold off changes to the
+ * registry that are not recorded here.
+ */
+public class DeviceStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(DeviceStore.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SNAPSHOT_MAGIC = 0x44455653;   // "DEVS"
+    private static final int SNAPSHOT_FORMAT = 2;      // 1 had no version
+    private static final String SNAPSHOT = "devices.snapshot";
+    private static final Pattern LOG_NAME = Pattern.compile("devices-(\\d+)\\.log");
+    private static final int RECORD_HEADER = 8;             // int length + int crc
+    private static final int WINDOW_BYTES = 4 << 20;
+    private static final byte ADD = 1;
+    private static final byte TOGGLE = 2;
+    private static final byte REMOVE = 3;
+
+    private final File directory;
+    private final long compactBytes;
+    private final DeviceRegistry registry;
+    private final CRC32 crc = new CRC32();
+    // recurring strings seen during recovery, looked up by their encoded bytes
+    private final byte[][] canonicalBytes = new byte[1024][];
+    private final String[] canonicalStrings = new String[1024];
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "device-store-compactor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private byte[] scratch = new byte[256];
+
+    private FileChannel log;
+    private long generation;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;      // end of the last record in the current log
+    private long version;       // changes recorded, restored ones included
+    private volatile boolean compacting;
+
+    /**
+     * @param compactBytes log size after which the next append triggers a compaction
+     */
+    public DeviceStore(File directory, long compactBytes, DeviceRegistry registry) {
+        this.directory = directory;
+        this.compactBytes = compactBytes;
+        this.registry = registry;
+    }
+
+    /**
+     * Restores the saved devices and id counter into the registry and opens the log
+     * for appending.
+     *
+     * @return the number of devices restored
+     */
+    public int recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        generation = readSnapshot();
+        long end = 0;
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < generation) {
+                Files.deleteIfExists(logFile(logGeneration).toPath());
+            } else {
+                end = replay(logFile(logGeneration));
+                generation = logGeneration;
+            }
+        }
+        openLog(generation);
+        log.truncate(end);      // drops a torn record at the tail
+        position = end;
+        return registry.size();
+    }
+
+    /**
+     * @return the number of changes recorded so far, across restarts
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void recordAdd(Device device) {
+        append(ADD, device.getId(), device.getName(), device.getType(), device.getStatus(),
+                device.getDescription(), device.getRoom());
+    }
+
+    public void recordToggle(int id, String status) {
+        append(TOGGLE, id, status);
+    }
+
+    public void recordRemove(int id) {
+        append(REMOVE, id);
+    }
+
+    /**
+     * Forces the log to disk and waits briefly for a running compaction.
+     */
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (log != null) {
+            if (window != null) {
+                window.force();
+            }
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Failures are logged rather than thrown: the registry stays authoritative in
+     * memory, only durability is lost.
+     */
+    private void append(byte kind, int id, String... fields) {
+        if (log == null) {
+            throw new IllegalStateException("Store is not open");
+        }
+        version++;
+        byte[][] encoded = new byte[fields.length][];
+        int length = 5;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i] == null ? null : fields[i].getBytes(UTF_8);
+            length += 4 + (encoded[i] == null ? 0 : encoded[i].length);
+        }
+        try {
+            int offset = reserve(RECORD_HEADER + length);
+            ByteBuffer out = window;    // ByteBuffer's methods, which Java 8 also has
+            out.position(offset + RECORD_HEADER);
+            out.put(kind).putInt(id);
+            for (byte[] field : encoded) {
+                if (field == null) {
+                    out.putInt(-1);
+                } else {
+                    out.putInt(field.length).put(field);
+                }
+            }
+            ByteBuffer payload = out.duplicate();
+            payload.position(offset + RECORD_HEADER);
+            payload.limit(offset + RECORD_HEADER + length);
+            crc.reset();
+            crc.update(payload);
+            out.putInt(offset + 4, (int) crc.getValue());
+            out.putInt(offset, length);
+            position += RECORD_HEADER + length;
+            if (position >= compactBytes && !compacting) {
+                compact();
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Could not record device change in " + directory, ex);
+        }
+    }
+
+    /**
+     * Makes sure the mapped window has room for {@code size} more bytes.
+     *
+     * @return the offset in the window to write them at
+     */
+    private int reserve(int size) throws IOException {
+        if (window == null || position - windowStart + size > window.capacity()) {
+            windowStart = position;
+            window = log.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW_BYTES, size));
+        }
+        return (int) (position - windowStart);
+    }
+
+    /**
+     * Moves appends on to a new log generation and writes the current state as its
+     * snapshot in the background. The caller serializes changes, so the registry
+     * matches the log up to this point.
+     */
+    private void compact() throws IOException {
+        final List<Device> devices = registry.getAll();
+        final boolean[] on = new boolean[devices.size()];
+        for (int i = 0; i < on.length; i++) {
+            on[i] = devices.get(i).isOn();      // the only field that changes
+        }
+        final int nextId = registry.getNextId();
+        final long snapshotVersion = version;
+        final long snapshotGeneration = generation + 1;
+
+        window.force();
+        log.close();
+        openLog(snapshotGeneration);
+        generation = snapshotGeneration;
+        compacting = true;
+        compactor.execute(new Runnable() {
+            public void run() {
+                try {
+                    writeSnapshot(devices, on, nextId, snapshotVersion, snapshotGeneration);
+                    for (long logGeneration : logGenerations()) {
+                        if (logGeneration < snapshotGeneration) {
+                            Files.deleteIfExists(logFile(logGeneration).toPath());
+                        }
+                    }
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Could not compact device state in " + directory, ex);
+                } finally {
+                    compacting = false;
+                }
+            }
+        });
+    }
+
+    private void openLog(long logGeneration) throws IOException {
+        log = FileChannel.open(logFile(logGeneration).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        window = null;
+        windowStart = 0;
+        position = 0;
+    }
+
+    private void writeSnapshot(List<Device> devices, boolean[] on, int nextId, long snapshotVersion,
+                               long snapshotGeneration) throws IOException {
+        File temp = new File(directory, SNAPSHOT + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeLong(snapshotGeneration);
+            out.writeInt(nextId);
+            out.writeLong(snapshotVersion);
+            out.writeInt(devices.size());
+            for (int i = 0; i < on.length; i++) {
+                Device device = devices.get(i);
+                out.writeInt(device.getId());
+                writeString(out, device.getName());
+                writeString(out, device.getType());
+                writeString(out, on[i] ? Device.ON : Device.OFF);
+                writeString(out, device.getDescription());
+                writeString(out, device.getRoom());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the first log generation the snapshot does not cover, 0 without one
+     */
+    private long readSnapshot() throws IOException {
+        File file = new File(directory, SNAPSHOT);
+        if (!file.isFile()) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer in = map(channel);
+            int format = in.remaining() < 24 || in.getInt() != SNAPSHOT_MAGIC ? 0 : in.getInt();
+            if (format != 1 && format != SNAPSHOT_FORMAT) {
+                throw new IOException(file + " is not a device snapshot");
+            }
+            long snapshotGeneration = in.getLong();
+            int nextId = in.getInt();
+            version = format == 1 ? 0 : in.getLong();
+            for (int count = in.getInt(); count > 0; count--) {
+                Device device = new Device();
+                device.setId(in.getInt());
+                device.setName(readString(in));
+                device.setType(readCanonical(in));
+                device.setStatus(readCanonical(in));
+                device.setDescription(readString(in));
+                device.setRoom(readCanonical(in));
+                registry.restore(device);
+            }
+            registry.advanceNextId(nextId);
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Applies the valid records of one log to the registry.
+     *
+     * @return the offset just past the last valid record
+     */
+    private long replay(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer in = map(channel);
+            int end = 0;
+            while (in.remaining() >= RECORD_HEADER) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = in.slice();
+                payload.limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(payload);
+                version++;
+                end += RECORD_HEADER + length;
+                in.position(end);
+            }
+            return end;
+        }
+    }
+
+    private void apply(ByteBuffer record) throws IOException {
+        byte kind = record.get();
+        int id = record.getInt();
+        switch (kind) {
+            case ADD:
+                Device device = new Device();
+                device.setId(id);
+                device.setName(readString(record));
+                device.setType(readCanonical(record));
+                device.setStatus(readCanonical(record));
+                device.setDescription(readString(record));
+                device.setRoom(readCanonical(record));
+                registry.restore(device);
+                break;
+            case TOGGLE:
+                Device toggled = registry.get(id);
+                String status = readCanonical(record);
+                if (toggled != null) {
+                    toggled.setStatus(status);
+                }
+                break;
+            case REMOVE:
+                registry.remove(id);
+                break;
+            default:
+                throw new IOException("Unknown device record kind " + kind);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Device state file of " + size + " bytes is too large");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    private String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a string that recurs across devices, such as a type, status or room,
+     * sharing one instance of each value without decoding it again.
+     */
+    private String readCanonical(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        in.get(scratch, 0, length);
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + scratch[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (canonicalBytes.length - 1);
+        byte[] key = canonicalBytes[slot];
+        if (key != null && key.length == length && regionEquals(key, scratch, length)) {
+            return canonicalStrings[slot];
+        }
+        String value = new String(scratch, 0, length, UTF_8);
+        if (key == null) {
+            canonicalBytes[slot] = Arrays.copyOf(scratch, length);
+            canonicalStrings[slot] = value;
+        }
+        return value;
+    }
+
+    private static boolean regionEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File logFile(long logGeneration) {
+        return new File(directory, "devices-" + logGeneration + ".log");
+    }
+
+    private List<Long> logGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher m = LOG_NAME.matcher(name);
+                if (m.matches()) {
+                    generations.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
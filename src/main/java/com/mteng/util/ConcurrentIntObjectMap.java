@@ -0,0 +1,219 @@
+package com.mteng.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Concurrent hash map from primitive {@code int} keys to objects.
+ * <p>
+ * Keys are spread over a fixed number of lock-striped segments; each segment is an
+ * open-addressing table with linear probing and backward-shift deletion, so there
+ * is no boxing, no entry object per mapping and no tombstone build-up. Operations
+ * on different segments never contend. Null values are not allowed.
+ */
+public class ConcurrentIntObjectMap<V> {
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public ConcurrentIntObjectMap() {
+        this(16, 64);
+    }
+
+    /**
+     * @param concurrency     expected number of concurrently writing threads;
+     *                        rounded up to a power of two
+     * @param initialCapacity expected number of mappings
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentIntObjectMap(int concurrency, int initialCapacity) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, concurrency) - 1);
+        segments = (Segment<V>[]) new Segment<?>[1 << bits];
+        segmentShift = 32 - bits;
+        int perSegment = Math.max(4, initialCapacity / segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>(perSegment);
+        }
+    }
+
+    public V get(int key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h);
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value, or null
+     */
+    public V put(int key, V value) {
+        int h = hash(key);
+        return segmentFor(h).put(key, h, checkNotNull(value), false);
+    }
+
+    /**
+     * @return the existing value, or null if {@code value} was stored
+     */
+    public V putIfAbsent(int key, V value) {
+        int h = hash(key);
+        return segmentFor(h).put(key, h, checkNotNull(value), true);
+    }
+
+    /**
+     * @return the removed value, or null
+     */
+    public V remove(int key) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Copies the values into a new list. Each segment is copied atomically, the
+     * map as a whole is not.
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size());
+        for (Segment<V> segment : segments) {
+            segment.collect(values);
+        }
+        return values;
+    }
+
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment<V> segmentFor(int h) {
+        return segments[segments.length == 1 ? 0 : h >>> segmentShift];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static <V> V checkNotNull(V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        return value;
+    }
+
+    private static final class Segment<V> {
+        private int[] keys;
+        private Object[] values;   // null marks a free slot
+        private int size;
+
+        Segment(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+            keys = new int[tableSize];
+            values = new Object[tableSize];
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(int key, int h) {
+            int mask = keys.length - 1;
+            for (int i = h & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(int key, int h, V value, boolean onlyIfAbsent) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V previous = (V) values[i];
+                    if (!onlyIfAbsent) {
+                        values[i] = value;
+                    }
+                    return previous;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length * 3 / 4) {
+                rehash(keys.length * 2);
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(int key, int h) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == null) {
+                return null;
+            }
+            V removed = (V) values[i];
+            // backward-shift the rest of the probe chain into the hole
+            int hole = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            values[hole] = null;
+            size--;
+            return removed;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void collect(List<V> into) {
+            for (Object value : values) {
+                if (value != null) {
+                    into.add((V) value);
+                }
+            }
+        }
+
+        synchronized void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void rehash(int tableSize) {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[tableSize];
+            values = new Object[tableSize];
+            int mask = tableSize - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldValues[k] != null) {
+                    int i = hash(oldKeys[k]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[k];
+                    values[i] = oldValues[k];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.mteng.webSocket;
+
+import javax.websocket.Session;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Non-blocking fan-out of messages to many sessions.
+ * <p>
+ * Every registered session gets its own bounded {@link SessionOutbound} queue,
+ * drained through the async remote, so a stalled client only ever delays itself.
+ * By default the {@link OutboundLimits} come from the {@code mteng.fanout.*} system
+ * properties, with {@link SlowConsumerPolicy#COALESCE} as the policy.
+ * <p>
+ * Sessions may subscribe to topics. A session without subscriptions receives every
+ * {@link #publish published} message; a subscribed one only those published under
+ * one of its topics, found through an index from topic to sessions. Publishing
+ * therefore costs one enqueue per interested session, however many are connected.
+ */
+public class BroadcastFanout {
+    /**
+     * Told when a session paused under {@link SlowConsumerPolicy#PAUSE} has drained
+     * and missed messages meanwhile; called without any fan-out lock held.
+     */
+    public interface ResumeListener {
+        void resumed(Session session);
+    }
+
+    /**
+     * Makes one message out of several, in order.
+     */
+    public interface Joiner {
+        OutboundMessage join(List<OutboundMessage> messages);
+    }
+
+    private final ConcurrentMap<Session, SessionOutbound> outbounds = new ConcurrentHashMap<>();
+    private final Set<SessionOutbound> unfiltered = newConcurrentSet();
+    private final ConcurrentMap<String, Set<SessionOutbound>> subscribers = new ConcurrentHashMap<>();
+    private final Object subscriptionLock = new Object();
+    private final FanoutStats stats = new FanoutStats();
+    private final OutboundLimits limits;
+    private volatile ResumeListener resumeListener;
+
+    public BroadcastFanout() {
+        this(OutboundLimits.fromSystemProperties("mteng.fanout", SlowConsumerPolicy.COALESCE));
+    }
+
+    public BroadcastFanout(OutboundLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Applies to sessions registered afterwards.
+     */
+    public void setResumeListener(ResumeListener resumeListener) {
+        this.resumeListener = resumeListener;
+    }
+
+    public void register(Session session) {
+        register(session, false);
+    }
+
+    /**
+     * @param binary true to send the session the binary form of messages that have one
+     */
+    public void register(Session session, boolean binary) {
+        SessionOutbound outbound = new SessionOutbound(session, limits, stats, binary, resumeListener);
+        if (outbounds.putIfAbsent(session, outbound) == null) {
+            unfiltered.add(outbound);
+        }
+    }
+
+    public void unregister(Session session) {
+        SessionOutbound outbound = outbounds.remove(session);
+        if (outbound != null) {
+            outbound.close();
+            synchronized (subscriptionLock) {
+                unfiltered.remove(outbound);
+                for (String topic : outbound.topics) {
+                    removeSubscriber(topic, outbound);
+                }
+                outbound.topics.clear();
+            }
+        }
+    }
+
+    /**
+     * @return false if the session is not registered
+     */
+    public boolean subscribe(Session session, String topic) {
+        SessionOutbound outbound = outbounds.get(session);
+        if (outbound == null) {
+            return false;
+        }
+        synchronized (subscriptionLock) {
+            if (outbound.topics.add(topic)) {
+                Set<SessionOutbound> sessions = subscribers.get(topic);
+                if (sessions == null) {
+                    sessions = newConcurrentSet();
+                    subscribers.put(topic, sessions);
+                }
+                sessions.add(outbound);
+                unfiltered.remove(outbound);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops one subscription; a session left without any receives everything again.
+     *
+     * @return false if the session is not registered
+     */
+    public boolean unsubscribe(Session session, String topic) {
+        SessionOutbound outbound = outbounds.get(session);
+        if (outbound == null) {
+            return false;
+        }
+        synchronized (subscriptionLock) {
+            if (outbound.topics.remove(topic)) {
+                removeSubscriber(topic, outbound);
+                if (outbound.topics.isEmpty()) {
+                    unfiltered.add(outbound);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the topics of the session, empty if it receives everything
+     */
+    public Set<String> getTopics(Session session) {
+        SessionOutbound outbound = outbounds.get(session);
+        return outbound == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(outbound.topics);
+    }
+
+    /**
+     * Sends a reply to one session. Replies are never dropped for capacity, only
+     * broadcasts are.
+     */
+    public void send(Session session, OutboundMessage message) {
+        SessionOutbound outbound = outbounds.get(session);
+        if (outbound != null && !outbound.enqueue(message, false)) {
+            unregister(session);
+        }
+    }
+
+    /**
+     * Queues a message for one session, within its limits like a broadcast.
+     */
+    public void offer(Session session, OutboundMessage message) {
+        SessionOutbound outbound = outbounds.get(session);
+        if (outbound != null) {
+            offer(outbound, message);
+        }
+    }
+
+    /**
+     * Sends to every session, subscribed or not.
+     */
+    public void broadcast(OutboundMessage message) {
+        for (SessionOutbound outbound : outbounds.values()) {
+            offer(outbound, message);
+        }
+    }
+
+    /**
+     * Sends to the sessions without subscriptions and to those subscribed to any
+     * of {@code topics}, each once.
+     */
+    public void publish(OutboundMessage message, String[] topics) {
+        publishToUnfiltered(message);
+        publishToSubscribers(message, topics);
+    }
+
+    public void publishToUnfiltered(OutboundMessage message) {
+        for (SessionOutbound outbound : unfiltered) {
+            offer(outbound, message);
+        }
+    }
+
+    public void publishToSubscribers(OutboundMessage message, String[] topics) {
+        for (int i = 0; i < topics.length; i++) {
+            Set<SessionOutbound> sessions = subscribers.get(topics[i]);
+            if (sessions == null) {
+                continue;
+            }
+            for (SessionOutbound outbound : sessions) {
+                if (!subscribedToAny(outbound, topics, i)) {
+                    offer(outbound, message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends each subscribed session the messages published under any of its topics as
+     * one message, made by {@code joiner} if there is more than one. Sessions that get
+     * the same messages share what is sent.
+     *
+     * @param topics the topics of each message, in the same order
+     */
+    public void publishToSubscribers(List<OutboundMessage> messages, List<String[]> topics, Joiner joiner) {
+        Map<SessionOutbound, BitSet> wanted = new HashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            for (String topic : topics.get(i)) {
+                Set<SessionOutbound> sessions = subscribers.get(topic);
+                if (sessions == null) {
+                    continue;
+                }
+                for (SessionOutbound outbound : sessions) {
+                    BitSet indexes = wanted.get(outbound);
+                    if (indexes == null) {
+                        indexes = new BitSet(messages.size());
+                        wanted.put(outbound, indexes);
+                    }
+                    indexes.set(i);
+                }
+            }
+        }
+        Map<BitSet, OutboundMessage> joined = new HashMap<>();
+        for (Map.Entry<SessionOutbound, BitSet> entry : wanted.entrySet()) {
+            BitSet indexes = entry.getValue();
+            OutboundMessage message = joined.get(indexes);
+            if (message == null) {
+                List<OutboundMessage> selected = new ArrayList<>(indexes.cardinality());
+                for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+                    selected.add(messages.get(i));
+                }
+                message = selected.size() == 1 ? selected.get(0) : joiner.join(selected);
+                joined.put(indexes, message);
+            }
+            offer(entry.getKey(), message);
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    public Collection<SessionOutbound> getOutbounds() {
+        return outbounds.values();
+    }
+
+    public int getSessionCount() {
+        return outbounds.size();
+    }
+
+    public FanoutStats getStats() {
+        return stats;
+    }
+
+    public OutboundLimits getLimits() {
+        return limits;
+    }
+
+    private void offer(SessionOutbound outbound, OutboundMessage message) {
+        if (!outbound.enqueue(message)) {
+            unregister(outbound.getSession());
+        }
+    }
+
+    private void removeSubscriber(String topic, SessionOutbound outbound) {
+        Set<SessionOutbound> sessions = subscribers.get(topic);
+        if (sessions != null) {
+            sessions.remove(outbound);
+            if (sessions.isEmpty()) {
+                subscribers.remove(topic);
+            }
+        }
+    }
+
+    /**
+     * @return true if the session is subscribed to one of the first {@code count}
+     * topics, and so has already been sent the message
+     */
+    private static boolean subscribedToAny(SessionOutbound outbound, String[] topics, int count) {
+        for (int i = 0; i < count; i++) {
+            if (outbound.topics.contains(topics[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<SessionOutbound> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<SessionOutbound, Boolean>());
+    }
+}
@@ -0,0 +1,173 @@
+package com.mteng.webSocket;
+
+import com.mteng.model.Device;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary form of the device events, sent to sessions that negotiate the
+ * {@value #SUBPROTOCOL} subprotocol. Everyone else gets JSON text.
+ * <p>
+ * Every frame starts with an action byte and the state version as a varint:
+ * <pre>
+ * add, remove, toggle:  action version field* END
+ * snapshot:             action version count (field* END){count}
+ * batch:                action version count event{count}
+ * </pre>
+ * A field is a tag byte followed by its value. Ids, codes, counts and string lengths
+ * are unsigned LEB128 varints, strings are UTF-8. Well-known types and statuses are
+ * sent as small codes, anything else as a string. Absent fields are simply left out.
+ * The tables here must match the ones in {@code websocket.js}.
+ */
+public final class DeviceBinaryCodec {
+    public static final String SUBPROTOCOL = "devices.bin.v1";
+
+    static final int ADD = 1;
+    static final int REMOVE = 2;
+    static final int TOGGLE = 3;
+    static final int SNAPSHOT = 4;
+    static final int BATCH = 5;
+
+    static final int END = 0;
+    static final int TAG_ID = 1;
+    static final int TAG_NAME = 2;
+    static final int TAG_TYPE_CODE = 3;
+    static final int TAG_TYPE = 4;
+    static final int TAG_STATUS_CODE = 5;
+    static final int TAG_STATUS = 6;
+    static final int TAG_DESCRIPTION = 7;
+    static final int TAG_ROOM = 8;
+
+    private static final List<String> TYPES = Arrays.asList("Appliance", "Electronics", "Lights", "Other");
+    private static final List<String> STATUSES = Arrays.asList("Off", "On");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DeviceBinaryCodec() {
+    }
+
+    /**
+     * @param status the device's status as of {@code version}
+     */
+    public static byte[] add(Device device, String status, long version) {
+        Writer out = new Writer(64).header(ADD, version);
+        writeDevice(out, device, status);
+        return out.toByteArray();
+    }
+
+    public static byte[] remove(int id, long version) {
+        return new Writer(16).header(REMOVE, version)
+                .tag(TAG_ID).varint(id)
+                .tag(END).toByteArray();
+    }
+
+    public static byte[] toggle(int id, String status, long version) {
+        return new Writer(16).header(TOGGLE, version)
+                .tag(TAG_ID).varint(id)
+                .coded(TAG_STATUS_CODE, TAG_STATUS, STATUSES, status)
+                .tag(END).toByteArray();
+    }
+
+    /**
+     * @param statuses the devices' statuses as of {@code version}, in the same order
+     */
+    public static byte[] snapshot(List<Device> devices, String[] statuses, long version) {
+        Writer out = new Writer(16 + devices.size() * 48).header(SNAPSHOT, version);
+        out.varint(devices.size());
+        for (int i = 0; i < statuses.length; i++) {
+            writeDevice(out, devices.get(i), statuses[i]);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Concatenates the already encoded events without re-encoding them.
+     */
+    public static byte[] batch(List<OutboundMessage> events, long version) {
+        byte[][] parts = new byte[events.size()][];
+        int length = 16;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = events.get(i).getBinary();
+            length += parts[i].length;
+        }
+        Writer out = new Writer(length).header(BATCH, version);
+        out.varint(parts.length);
+        for (byte[] part : parts) {
+            out.bytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeDevice(Writer out, Device device, String status) {
+        out.tag(TAG_ID).varint(device.getId())
+                .string(TAG_NAME, device.getName())
+                .coded(TAG_TYPE_CODE, TAG_TYPE, TYPES, device.getType())
+                .coded(TAG_STATUS_CODE, TAG_STATUS, STATUSES, status)
+                .string(TAG_DESCRIPTION, device.getDescription())
+                .string(TAG_ROOM, device.getRoom())
+                .tag(END);
+    }
+
+    /**
+     * Growable byte array, sized up front so that it rarely grows.
+     */
+    private static final class Writer {
+        private byte[] buf;
+        private int count;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        Writer header(int action, long version) {
+            return tag(action).varint(version);
+        }
+
+        Writer tag(int tag) {
+            ensure(1);
+            buf[count++] = (byte) tag;
+            return this;
+        }
+
+        Writer varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+            return this;
+        }
+
+        Writer string(int tag, String value) {
+            if (value != null) {
+                byte[] bytes = value.getBytes(UTF_8);
+                tag(tag).varint(bytes.length).bytes(bytes);
+            }
+            return this;
+        }
+
+        Writer coded(int codeTag, int stringTag, List<String> table, String value) {
+            int code = value == null ? -1 : table.indexOf(value);
+            return code >= 0 ? tag(codeTag).varint(code) : string(stringTag, value);
+        }
+
+        Writer bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return count == buf.length ? buf : Arrays.copyOf(buf, count);
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.mteng.webSocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded log of the most recent encoded device events, indexed by state version.
+ * <p>
+ * Version {@code v} is the state after the {@code v}-th change, so a client that has
+ * seen version {@code v} needs every event from {@code v + 1} up to the current one.
+ * Not thread-safe; {@link DeviceSessionHandler} only touches it under its state lock.
+ */
+class DeviceChangeLog {
+    private final OutboundMessage[] events;
+    private long latestVersion;
+    private long firstVersion;      // the events after this one are all appended here
+
+    DeviceChangeLog(int capacity) {
+        events = new OutboundMessage[Math.max(1, capacity)];
+    }
+
+    /**
+     * Records the event that produced {@code version}; versions must be appended in
+     * order without gaps.
+     */
+    void append(long version, OutboundMessage event) {
+        events[(int) (version % events.length)] = event;
+        latestVersion = version;
+    }
+
+    /**
+     * Empties the log and starts it at {@code version}, for state restored from
+     * elsewhere: clients behind it cannot be brought up to date from here.
+     */
+    void reset(long version) {
+        Arrays.fill(events, null);
+        latestVersion = version;
+        firstVersion = version;
+    }
+
+    /**
+     * @return the events after {@code version} in order, or null if some of them
+     * have already been overwritten (or {@code version} is from the future)
+     */
+    List<OutboundMessage> since(long version) {
+        long oldestKept = Math.max(firstVersion + 1, latestVersion - events.length + 1);
+        if (version > latestVersion || version + 1 < oldestKept) {
+            return null;
+        }
+        List<OutboundMessage> missed = new ArrayList<>((int) (latestVersion - version));
+        for (long v = version + 1; v <= latestVersion; v++) {
+            missed.add(events[(int) (v % events.length)]);
+        }
+        return missed;
+    }
+}
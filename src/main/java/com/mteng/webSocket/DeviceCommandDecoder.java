@@ -0,0 +1,270 @@
+package com.mteng.webSocket;
+
+import javax.json.JsonException;
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import javax.websocket.Session;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the commands clients send to {@code /actions} in one streaming pass and
+ * dispatches them by {@code action} to a table of handlers.
+ * <p>
+ * A command is a JSON object such as {@code {"action":"toggle","id":3}}. The fields
+ * are picked straight off the parser events into a {@link Command}; no
+ * {@code JsonObject} tree is built. Only bulk commands nest, one level deep:
+ * {@code devices} is an array of device objects, {@code ids} an array of ids and
+ * {@code filter} an object of criteria. Parsing stops at the first sign of a bad
+ * command: an action without a handler, any other nested value, a field of the
+ * wrong type or invalid JSON. Unknown scalar fields are ignored.
+ */
+public class DeviceCommandDecoder {
+    public interface Handler {
+        /**
+         * @return false if the command lacks a field this action needs
+         */
+        boolean handle(Command command, Session session);
+    }
+
+    /**
+     * The fields of one decoded command. Absent fields are null, or -1 for the id.
+     */
+    public static final class Command {
+        private String action;
+        private String name;
+        private String description;
+        private String type;
+        private String room;
+        private String topic;
+        private String status;
+        private int id = -1;
+        private int[] ids;
+        private List<Command> devices;
+        private Command filter;
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        /**
+         * @return the device objects of a bulk add, or null
+         */
+        public List<Command> getDevices() {
+            return devices;
+        }
+
+        public Command getFilter() {
+            return filter;
+        }
+    }
+
+    private static final JsonParserFactory PARSERS =
+            JsonProvider.provider().createParserFactory(null);
+
+    private final Map<String, Handler> handlers = new HashMap<>();
+
+    /**
+     * Registers the handler for an action. Not thread-safe; set the table up before
+     * the first {@link #dispatch}.
+     */
+    public DeviceCommandDecoder on(String action, Handler handler) {
+        handlers.put(action, handler);
+        return this;
+    }
+
+    /**
+     * @return true if the message was a well-formed command that a handler accepted
+     */
+    public boolean dispatch(String message, Session session) {
+        Command command = decode(message);
+        return command != null && handlers.get(command.action).handle(command, session);
+    }
+
+    /**
+     * @return the command, or null if it is malformed or has no handler
+     */
+    Command decode(String message) {
+        try (JsonParser parser = PARSERS.createParser(new StringReader(message))) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                return null;
+            }
+            Command command = new Command();
+            return readFields(parser, command, true) && command.action != null ? command : null;
+        } catch (JsonException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the fields of the current object up to its end.
+     *
+     * @param topLevel false inside a nested object, which may not nest any further
+     * @return false if the object is not a valid command
+     */
+    private boolean readFields(JsonParser parser, Command command, boolean topLevel) {
+        while (parser.hasNext()) {
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.END_OBJECT) {
+                return true;
+            }
+            String key = parser.getString();
+            JsonParser.Event value = parser.next();
+            switch (key) {
+                case "action":
+                    if (!topLevel || value != JsonParser.Event.VALUE_STRING) {
+                        return false;
+                    }
+                    command.action = parser.getString();
+                    if (!handlers.containsKey(command.action)) {
+                        return false;
+                    }
+                    break;
+                case "id":
+                    if (value != JsonParser.Event.VALUE_NUMBER || !parser.isIntegralNumber()) {
+                        return false;
+                    }
+                    command.id = parser.getInt();
+                    break;
+                case "name":
+                    if ((command.name = stringValue(parser, value)) == null) {
+                        return false;
+                    }
+                    break;
+                case "description":
+                    if ((command.description = stringValue(parser, value)) == null) {
+                        return false;
+                    }
+                    break;
+                case "type":
+                    if ((command.type = stringValue(parser, value)) == null) {
+                        return false;
+                    }
+                    break;
+                case "room":
+                    if ((command.room = stringValue(parser, value)) == null) {
+                        return false;
+                    }
+                    break;
+                case "topic":
+                    if ((command.topic = stringValue(parser, value)) == null) {
+                        return false;
+                    }
+                    break;
+                case "status":
+                    if ((command.status = stringValue(parser, value)) == null) {
+                        return false;
+                    }
+                    break;
+                case "ids":
+                    if (!topLevel || value != JsonParser.Event.START_ARRAY
+                            || (command.ids = readIds(parser)) == null) {
+                        return false;
+                    }
+                    break;
+                case "devices":
+                    if (!topLevel || value != JsonParser.Event.START_ARRAY
+                            || (command.devices = readObjects(parser)) == null) {
+                        return false;
+                    }
+                    break;
+                case "filter":
+                    if (!topLevel || value != JsonParser.Event.START_OBJECT
+                            || !readFields(parser, command.filter = new Command(), false)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (value == JsonParser.Event.START_OBJECT || value == JsonParser.Event.START_ARRAY) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the integers up to the end of the current array, or null if it holds
+     * anything else
+     */
+    private static int[] readIds(JsonParser parser) {
+        int[] ids = new int[16];
+        int count = 0;
+        while (parser.hasNext()) {
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.END_ARRAY) {
+                return Arrays.copyOf(ids, count);
+            }
+            if (event != JsonParser.Event.VALUE_NUMBER || !parser.isIntegralNumber()) {
+                return null;
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = parser.getInt();
+        }
+        return null;
+    }
+
+    /**
+     * @return the flat objects up to the end of the current array, or null if it
+     * holds anything else
+     */
+    private List<Command> readObjects(JsonParser parser) {
+        List<Command> objects = new ArrayList<>();
+        while (parser.hasNext()) {
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.END_ARRAY) {
+                return objects;
+            }
+            Command object = new Command();
+            if (event != JsonParser.Event.START_OBJECT || !readFields(parser, object, false)) {
+                return null;
+            }
+            objects.add(object);
+        }
+        return null;
+    }
+
+    private static String stringValue(JsonParser parser, JsonParser.Event value) {
+        return value == JsonParser.Event.VALUE_STRING ? parser.getString() : null;
+    }
+}
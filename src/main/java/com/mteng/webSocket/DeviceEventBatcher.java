@@ -0,0 +1,139 @@
+package com.mteng.webSocket;
+
+import com.mteng.model.Device;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional stage between {@link DeviceSessionHandler} and the fan-out that collects
+ * device events for a short window and sends them as one {@code batch} frame.
+ * <p>
+ * Within a window only the latest state of each device survives: repeated toggles
+ * collapse to the last one, a toggle of a device added in the same window is folded
+ * into the add, and an add followed by a remove disappears entirely. Surviving events
+ * are sent in version order, which is all a client needs to apply them correctly.
+ * <p>
+ * Sessions without subscriptions get the combined frame. Each subscribed session
+ * gets one frame of the surviving events for its topics.
+ * <p>
+ * The {@code offer} methods must be called in version order (the handler calls them
+ * under its state lock). A window is taken and published under the same lock, so it
+ * cannot reach a session between its registration and its resync.
+ */
+public class DeviceEventBatcher {
+    private enum Kind { ADD, TOGGLE, REMOVE }
+
+    private static final class Pending {
+        final Kind kind;
+        final Device device;
+        final OutboundMessage event;
+        final long version;
+        final String[] topics;
+
+        Pending(Kind kind, Device device, OutboundMessage event, long version, String[] topics) {
+            this.kind = kind;
+            this.device = device;
+            this.event = event;
+            this.version = version;
+            this.topics = topics;
+        }
+    }
+
+    private final BroadcastFanout fanout;
+    private final long windowMillis;
+    private final Object stateLock;
+    private final ScheduledExecutorService timer;
+    // insertion order == version order: a replaced entry is re-inserted at the end
+    private LinkedHashMap<Integer, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * @param stateLock the lock the handler holds while it changes devices and resyncs
+     *                  sessions
+     */
+    public DeviceEventBatcher(BroadcastFanout fanout, long windowMillis, Object stateLock) {
+        this.fanout = fanout;
+        this.windowMillis = windowMillis;
+        this.stateLock = stateLock;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "device-event-batcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public synchronized void offerAdd(Device device, OutboundMessage event, long version, String[] topics) {
+        put(device.getId(), new Pending(Kind.ADD, device, event, version, topics));
+    }
+
+    public synchronized void offerToggle(int id, OutboundMessage event, long version, String[] topics) {
+        Pending previous = pending.get(id);
+        if (previous != null && previous.kind == Kind.ADD) {
+            // the client has not seen the add yet: send it with the current status
+            put(id, new Pending(Kind.ADD, previous.device,
+                    DeviceEvents.add(previous.device, version), version, topics));
+        } else {
+            put(id, new Pending(Kind.TOGGLE, null, event, version, topics));
+        }
+    }
+
+    public synchronized void offerRemove(int id, OutboundMessage event, long version, String[] topics) {
+        Pending previous = pending.get(id);
+        if (previous != null && previous.kind == Kind.ADD) {
+            pending.remove(id);
+        } else {
+            put(id, new Pending(Kind.REMOVE, null, event, version, topics));
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void put(int id, Pending change) {
+        if (pending.isEmpty()) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        pending.remove(id);
+        pending.put(id, change);
+    }
+
+    void flush() {
+        synchronized (stateLock) {
+            Map<Integer, Pending> window;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                window = pending;
+                pending = new LinkedHashMap<>();
+            }
+            List<OutboundMessage> events = new ArrayList<>(window.size());
+            long version = 0;
+            for (Pending change : window.values()) {
+                events.add(change.event);
+                version = change.version;
+            }
+            fanout.publishToUnfiltered(events.size() == 1 ? events.get(0) : DeviceEvents.batch(events, version));
+            if (fanout.hasSubscribers()) {
+                List<String[]> topics = new ArrayList<>(window.size());
+                for (Pending change : window.values()) {
+                    topics.add(change.topics);
+                }
+                fanout.publishToSubscribers(events, topics, DeviceEvents.batcher(version));
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.mteng.webSocket;
+
+import com.mteng.model.Device;
+
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Encodes device events for the {@code /actions} endpoint.
+ * <p>
+ * Each event is written once, straight to text with a cached generator factory
+ * (no provider lookup and no intermediate {@code JsonObject}), and the resulting
+ * immutable {@link OutboundMessage} is shared by every recipient. The
+ * {@link DeviceBinaryCodec binary form} is only encoded if a binary session needs it,
+ * from the device statuses captured with the text, so both forms describe the same
+ * version.
+ * <p>
+ * Every frame carries the state {@code version} it brings the client to:
+ * <ul>
+ * <li>{@code add}, {@code remove}, {@code toggle} - a single change</li>
+ * <li>{@code snapshot} - the complete device list, replacing whatever the client had</li>
+ * <li>{@code batch} - several changes in order, in an {@code events} array</li>
+ * </ul>
+ */
+public final class DeviceEvents {
+    private static final JsonGeneratorFactory GENERATORS =
+            JsonProvider.provider().createGeneratorFactory(null);
+
+    private DeviceEvents() {
+    }
+
+    public static OutboundMessage add(final Device device, final long version) {
+        final String status = device.getStatus();      // the only field that changes
+        StringWriter out = new StringWriter(128);
+        JsonGenerator json = GENERATORS.createGenerator(out);
+        json.writeStartObject()
+                .write("action", "add")
+                .write("version", version);
+        writeDevice(json, device, status);
+        json.writeEnd().close();
+        return new OutboundMessage(out.toString(), OutboundMessage.NO_KEY, new OutboundMessage.BinaryEncoder() {
+            public byte[] encode() {
+                return DeviceBinaryCodec.add(device, status, version);
+            }
+        });
+    }
+
+    public static OutboundMessage remove(final int id, final long version) {
+        StringWriter out = new StringWriter(48);
+        JsonGenerator json = GENERATORS.createGenerator(out);
+        json.writeStartObject()
+                .write("action", "remove")
+                .write("version", version)
+                .write("id", id)
+                .writeEnd()
+                .close();
+        return new OutboundMessage(out.toString(), OutboundMessage.NO_KEY, new OutboundMessage.BinaryEncoder() {
+            public byte[] encode() {
+                return DeviceBinaryCodec.remove(id, version);
+            }
+        });
+    }
+
+    /**
+     * Toggles carry the device id as coalesce key: a newer state of the same
+     * device supersedes a queued older one.
+     */
+    public static OutboundMessage toggle(final int id, final String status, final long version) {
+        StringWriter out = new StringWriter(64);
+        JsonGenerator json = GENERATORS.createGenerator(out);
+        json.writeStartObject()
+                .write("action", "toggle")
+                .write("version", version)
+                .write("id", id)
+                .write("status", status)
+                .writeEnd()
+                .close();
+        return new OutboundMessage(out.toString(), id, new OutboundMessage.BinaryEncoder() {
+            public byte[] encode() {
+                return DeviceBinaryCodec.toggle(id, status, version);
+            }
+        });
+    }
+
+    public static OutboundMessage snapshot(Collection<Device> devices, final long version) {
+        final List<Device> listed = new ArrayList<>(devices);
+        final String[] statuses = new String[listed.size()];
+        StringWriter out = new StringWriter(64 + listed.size() * 96);
+        JsonGenerator json = GENERATORS.createGenerator(out);
+        json.writeStartObject()
+                .write("action", "snapshot")
+                .write("version", version)
+                .writeStartArray("devices");
+        for (int i = 0; i < statuses.length; i++) {
+            Device device = listed.get(i);
+            statuses[i] = device.getStatus();
+            json.writeStartObject();
+            writeDevice(json, device, statuses[i]);
+            json.writeEnd();
+        }
+        json.writeEnd().writeEnd().close();
+        return new OutboundMessage(out.toString(), OutboundMessage.NO_KEY, new OutboundMessage.BinaryEncoder() {
+            public byte[] encode() {
+                return DeviceBinaryCodec.snapshot(listed, statuses, version);
+            }
+        });
+    }
+
+    /**
+     * Joins already encoded events into one frame without re-encoding them.
+     */
+    public static OutboundMessage batch(final List<OutboundMessage> events, final long version) {
+        int length = 64;
+        for (OutboundMessage event : events) {
+            length += event.getText().length() + 1;
+        }
+        StringBuilder out = new StringBuilder(length)
+                .append("{\"action\":\"batch\",\"version\":").append(version)
+                .append(",\"events\":[");
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(events.get(i).getText());
+        }
+        return new OutboundMessage(out.append("]}").toString(), OutboundMessage.NO_KEY, new OutboundMessage.BinaryEncoder() {
+            public byte[] encode() {
+                return DeviceBinaryCodec.batch(events, version);
+            }
+        });
+    }
+
+    /**
+     * @return a joiner of events into {@link #batch batches} that bring the client to
+     * {@code version}
+     */
+    public static BroadcastFanout.Joiner batcher(final long version) {
+        return new BroadcastFanout.Joiner() {
+            public OutboundMessage join(List<OutboundMessage> events) {
+                return batch(events, version);
+            }
+        };
+    }
+
+    private static void writeDevice(JsonGenerator json, Device device, String status) {
+        json.write("id", device.getId())
+                .write("name", device.getName())
+                .write("type", device.getType())
+                .write("status", status)
+                .write("description", device.getDescription());
+        if (device.getRoom() != null) {
+            json.write("room", device.getRoom());
+        }
+    }
+}
@@ -1,115 +1,383 @@
 package com.mteng.webSocket;
 
 import com.mteng.model.Device;
+import com.mteng.model.DeviceFilter;
+import com.mteng.model.DeviceRegistry;
+import com.mteng.model.DeviceStore;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
-import javax.json.JsonObject;
-import javax.json.spi.JsonProvider;
 import javax.websocket.Session;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Created by mteng on 3/18/2015.
+ * <p>
+ * Every change to the device set bumps a state version and is appended to a bounded
+ * {@link DeviceChangeLog}. A new session gets the whole device set as one
+ * {@code snapshot} frame; a reconnecting client that passes the last version it saw
+ * ({@code /actions?since=N}) only gets the changes it missed, as one {@code batch}
+ * frame, as long as they are still in the log.
+ * <p>
+ * Events are published under the {@link DeviceTopics topics} of their device, so a
+ * session that subscribed to some topics only hears about the devices it watches.
+ * Each (un)subscribe is answered with a snapshot of the devices now watched.
+ * <p>
+ * Devices survive restarts: every change is also recorded in a {@link DeviceStore},
+ * from which the registry, its id counter and the state version are restored on
+ * startup. Without a store, versions start from the time of startup in microseconds
+ * instead of 0, above those of any earlier run. Either way, a client that saw a
+ * version from before the restart gets a snapshot.
+ * <p>
+ * Bulk changes are applied atomically under the same lock and announced as one
+ * {@code batch} frame.
+ * <p>
+ * Mutations, their broadcast and session registration all happen under one state
+ * lock, so every session sees the changes in the same order and a snapshot can never
+ * miss or repeat a change. Broadcasting only queues, so the lock is held briefly.
+ * <p>
+ * With {@code mteng.devices.batchWindowMs} set above zero, events are broadcast
+ * through a {@link DeviceEventBatcher} instead, one coalesced frame per window.
+ * <p>
+ * Outbound queues are bounded as set by the {@code mteng.fanout.*} properties (see
+ * {@link OutboundLimits}) and reported under {@code actions} by {@link MetricsServlet}.
+ * A session paused for going over its high watermark gets a fresh snapshot once it
+ * drains, in place of the changes it missed.
  */
 @ApplicationScoped
 public class DeviceSessionHandler {
-    private int deviceId = 0;
-    private final Set<Session> sessions = new HashSet<>();
-    private final Set<Device> devices = new HashSet<>();
+    private static final Logger LOGGER = Logger.getLogger(DeviceSessionHandler.class.getName());
+    public static final String SINCE_PARAMETER = "since";
+    private static final String METRICS_NAME = "actions";
+
+    private final BroadcastFanout fanout = new BroadcastFanout();
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private final Object stateLock = new Object();
+    private final DeviceChangeLog changeLog =
+            new DeviceChangeLog(Integer.getInteger("mteng.devices.changeLogSize", 4096));
+    private long version = 0;
+    private final DeviceEventBatcher batcher = createBatcher(fanout, stateLock);
+    private DeviceStore store;
+
+    private static DeviceEventBatcher createBatcher(BroadcastFanout fanout, Object stateLock) {
+        long window = Long.getLong("mteng.devices.batchWindowMs", 0L);
+        return window > 0 ? new DeviceEventBatcher(fanout, window, stateLock) : null;
+    }
+
+    /**
+     * Restores the devices saved in {@code mteng.devices.dataDir}, which should be on
+     * persistent storage. Without it (or with {@code none}) devices are kept in memory
+     * only.
+     */
+    @PostConstruct
+    public void init() {
+        fanout.setResumeListener(new BroadcastFanout.ResumeListener() {
+            @Override
+            public void resumed(Session session) {
+                synchronized (stateLock) {
+                    sendSnapshot(session);
+                }
+            }
+        });
+        OutboundMetrics.register(METRICS_NAME, fanout);
+        synchronized (stateLock) {
+            // exact as a JavaScript number, and only reached by an earlier run that
+            // made a change every microsecond
+            version = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+            changeLog.reset(version);
+        }
+        String dataDir = System.getProperty("mteng.devices.dataDir");
+        if (dataDir == null) {
+            LOGGER.warning("mteng.devices.dataDir is not set; devices will not survive a restart");
+            return;
+        }
+        if ("none".equals(dataDir)) {
+            return;
+        }
+        DeviceStore opened = new DeviceStore(new File(dataDir),
+                Long.getLong("mteng.devices.compactBytes", 64L << 20), devices);
+        try {
+            long start = System.nanoTime();
+            int restored = opened.recover();
+            LOGGER.info("Restored " + restored + " devices from " + dataDir + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            synchronized (stateLock) {
+                store = opened;
+                version = opened.getVersion();
+                changeLog.reset(version);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "Could not restore devices from " + dataDir
+                    + "; they will not be saved", ex);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        OutboundMetrics.unregister(METRICS_NAME);
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        synchronized (stateLock) {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, null, ex);
+                }
+                store = null;
+            }
+        }
+    }
 
     public void addSession(Session session) {
-        sessions.add(session);
-        for (Device device : devices) {
-            JsonObject addMessage = createAddMessage(device);
-            sendToSession(session, addMessage);
+        long since = parseSince(session);
+        synchronized (stateLock) {
+            fanout.register(session, DeviceBinaryCodec.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol()));
+            List<OutboundMessage> missed = since >= 0 ? changeLog.since(since) : null;
+            if (missed == null) {
+                sendSnapshot(session);
+            } else if (!missed.isEmpty()) {
+                fanout.send(session, DeviceEvents.batch(missed, version));
+            }
         }
     }
     public void removeSession(Session session) {
-        sessions.remove(session);
+        fanout.unregister(session);
+    }
+
+    /**
+     * Subscribes the session to a {@link DeviceTopics topic} and sends it a snapshot
+     * of just the devices it now watches.
+     *
+     * @return false if the topic is not valid
+     */
+    public boolean subscribe(Session session, String topic) {
+        if (!DeviceTopics.isValid(topic)) {
+            return false;
+        }
+        synchronized (stateLock) {
+            if (fanout.subscribe(session, topic)) {
+                sendSnapshot(session);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops a subscription and sends the session a snapshot of what it still
+     * watches, or of every device once it has no subscriptions left.
+     */
+    public void unsubscribe(Session session, String topic) {
+        synchronized (stateLock) {
+            if (fanout.unsubscribe(session, topic)) {
+                sendSnapshot(session);
+            }
+        }
+    }
+
+    public FanoutStats getFanoutStats() {
+        return fanout.getStats();
+    }
+    public List<Device> getDevices() {
+        return devices.getAll();
     }
-    public List getDevices() {
-        return new ArrayList<>(devices);
+    public long getVersion() {
+        synchronized (stateLock) {
+            return version;
+        }
     }
 
     public void addDevice(Device device) {
-        device.setId(deviceId);
-        devices.add(device);
-        deviceId++;
-        JsonObject addMessage = createAddMessage(device);
-        sendToAllConnectedSessions(addMessage);
+        addDevices(Collections.singletonList(device));
+    }
+
+    /**
+     * Adds all the devices in one step, announced as one {@code batch} frame.
+     */
+    public void addDevices(Collection<Device> added) {
+        synchronized (stateLock) {
+            Published published = new Published();
+            for (Device device : added) {
+                devices.add(device);
+                if (store != null) {
+                    store.recordAdd(device);
+                }
+                OutboundMessage event = DeviceEvents.add(device, ++version);
+                String[] topics = DeviceTopics.of(device);
+                if (batcher != null) {
+                    batcher.offerAdd(device, event, version, topics);
+                }
+                record(published, event, topics);
+            }
+            publish(published);
+        }
     }
 
     public void removeDevice(int id) {
-        Device device = getDeviceById(id);
-        if (device != null) {
-            devices.remove(device);
-            JsonProvider provider = JsonProvider.provider();
-            JsonObject removeMessage = provider.createObjectBuilder()
-                    .add("action", "remove")
-                    .add("id", id)
-                    .build();
-            sendToAllConnectedSessions(removeMessage);
+        synchronized (stateLock) {
+            Published published = new Published();
+            remove(id, published);
+            publish(published);
         }
     }
 
-    public void toggleDevice(int id) {
-        JsonProvider provider = JsonProvider.provider();
-        Device device = getDeviceById(id);
-        if (device != null) {
-            if ("On".equals(device.getStatus())) {
-                device.setStatus("Off");
-            } else {
-                device.setStatus("On");
+    /**
+     * Removes every device the filter matches in one step, announced as one
+     * {@code batch} frame.
+     *
+     * @return the number of devices removed
+     */
+    public int removeDevices(DeviceFilter filter) {
+        synchronized (stateLock) {
+            Published published = new Published();
+            int removed = 0;
+            for (Device device : devices.getAll()) {
+                if (filter.matches(device) && remove(device.getId(), published)) {
+                    removed++;
+                }
             }
-            JsonObject updateDevMessage = provider.createObjectBuilder()
-                    .add("action", "toggle")
-                    .add("id", device.getId())
-                    .add("status", device.getStatus())
-                    .build();
-            sendToAllConnectedSessions(updateDevMessage);
+            publish(published);
+            return removed;
+        }
+    }
+
+    public void toggleDevice(int id) {
+        synchronized (stateLock) {
+            Published published = new Published();
+            statusChanged(id, devices.toggle(id), published);
+            publish(published);
         }
     }
 
-    private Device getDeviceById(int id) {
-        for (Device device : devices) {
-            if (device.getId() == id) {
-                return device;
+    /**
+     * Turns the devices on or off in one step, announced as one {@code batch} frame.
+     * Unknown ids and devices already in that state are skipped.
+     */
+    public void setStatus(int[] ids, boolean on) {
+        synchronized (stateLock) {
+            Published published = new Published();
+            for (int id : ids) {
+                statusChanged(id, devices.setOn(id, on), published);
             }
+            publish(published);
         }
-        return null;
     }
 
-    private JsonObject createAddMessage(Device device) {
-        JsonProvider provider = JsonProvider.provider();
-        JsonObject addMessage = provider.createObjectBuilder()
-                .add("action", "add")
-                .add("id", device.getId())
-                .add("name", device.getName())
-                .add("type", device.getType())
-                .add("status", device.getStatus())
-                .add("description", device.getDescription())
-                .build();
-        return addMessage;
+    /**
+     * The events of one change to the device set, published together once it is
+     * complete. Stays empty when a batcher publishes instead.
+     */
+    private static final class Published {
+        final List<OutboundMessage> events = new ArrayList<>();
+        final List<String[]> topics = new ArrayList<>();
     }
 
-    private void sendToAllConnectedSessions(JsonObject message) {
-        for (Session session : sessions) {
-            sendToSession(session, message);
+    private boolean remove(int id, Published published) {
+        Device device = devices.remove(id);
+        if (device == null) {
+            return false;
+        }
+        if (store != null) {
+            store.recordRemove(id);
+        }
+        OutboundMessage event = DeviceEvents.remove(id, ++version);
+        String[] topics = DeviceTopics.of(device);
+        if (batcher != null) {
+            batcher.offerRemove(id, event, version, topics);
         }
+        record(published, event, topics);
+        return true;
     }
 
-    private void sendToSession(Session session, JsonObject message) {
+    /**
+     * @param status the new status, or null if the device's status did not change
+     */
+    private void statusChanged(int id, String status, Published published) {
+        if (status == null) {
+            return;
+        }
+        if (store != null) {
+            store.recordToggle(id, status);
+        }
+        OutboundMessage event = DeviceEvents.toggle(id, status, ++version);
+        String[] topics = DeviceTopics.of(devices.get(id));
+        if (batcher != null) {
+            batcher.offerToggle(id, event, version, topics);
+        }
+        record(published, event, topics);
+    }
+
+    private void record(Published published, OutboundMessage event, String[] topics) {
+        changeLog.append(version, event);
+        if (batcher == null) {
+            published.events.add(event);
+            published.topics.add(topics);
+        }
+    }
+
+    /**
+     * Sends a single event as it is. Several go to unsubscribed sessions as one
+     * {@code batch} frame, and to each subscribed session as one frame of the events
+     * it watches.
+     */
+    private void publish(Published published) {
+        List<OutboundMessage> events = published.events;
+        if (events.size() == 1) {
+            fanout.publish(events.get(0), published.topics.get(0));
+        } else if (events.size() > 1) {
+            fanout.publishToUnfiltered(DeviceEvents.batch(events, version));
+            if (fanout.hasSubscribers()) {
+                fanout.publishToSubscribers(events, published.topics, DeviceEvents.batcher(version));
+            }
+        }
+    }
+
+    /**
+     * Sends the devices matching the session's topics, or all of them if it has none.
+     * Must be called under the state lock.
+     */
+    private void sendSnapshot(Session session) {
+        Set<String> topics = fanout.getTopics(session);
+        List<Device> all = devices.getAll();
+        if (topics.isEmpty()) {
+            fanout.send(session, DeviceEvents.snapshot(all, version));
+            return;
+        }
+        List<Device> watched = new ArrayList<>();
+        for (Device device : all) {
+            for (String topic : DeviceTopics.of(device)) {
+                if (topics.contains(topic)) {
+                    watched.add(device);
+                    break;
+                }
+            }
+        }
+        fanout.send(session, DeviceEvents.snapshot(watched, version));
+    }
+
+    /**
+     * @return the version passed as {@code ?since=}, or -1 for a fresh client
+     */
+    private static long parseSince(Session session) {
+        List<String> values = session.getRequestParameterMap().get(SINCE_PARAMETER);
+        if (values == null || values.isEmpty()) {
+            return -1;
+        }
         try {
-            session.getBasicRemote().sendText(message.toString());
-        } catch (IOException ex) {
-            sessions.remove(session);
-            Logger.getLogger(DeviceSessionHandler.class.getName()).log(Level.SEVERE, null, ex);
+            return Long.parseLong(values.get(0));
+        } catch (NumberFormatException ex) {
+            return -1;
         }
     }
 }
@@ -0,0 +1,32 @@
+package com.mteng.webSocket;
+
+import com.mteng.model.Device;
+
+/**
+ * Topics a session can subscribe to on {@code /actions}: {@code id:<id>},
+ * {@code type:<type>} and {@code room:<room>}. Every device event is published
+ * under the topics of the device it concerns.
+ */
+public final class DeviceTopics {
+    public static final String ID = "id:";
+    public static final String TYPE = "type:";
+    public static final String ROOM = "room:";
+
+    private DeviceTopics() {
+    }
+
+    /**
+     * @return the topics of {@code device}; a device without a room has no room topic
+     */
+    public static String[] of(Device device) {
+        String id = ID + device.getId();
+        String type = TYPE + device.getType();
+        return device.getRoom() == null
+                ? new String[]{id, type}
+                : new String[]{id, type, ROOM + device.getRoom()};
+    }
+
+    public static boolean isValid(String topic) {
+        return topic != null && (topic.startsWith(ID) || topic.startsWith(TYPE) || topic.startsWith(ROOM));
+    }
+}
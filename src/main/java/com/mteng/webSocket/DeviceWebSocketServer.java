@@ -1,31 +1,141 @@
 package com.mteng.webSocket;
 
 import com.mteng.model.Device;
+import com.mteng.model.DeviceFilter;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
-import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Created by mteng on 3/18/2015.
+ * <p>
+ * Commands are decoded by a {@link DeviceCommandDecoder}; malformed or unknown ones
+ * are dropped and logged at {@code FINE}. Besides single-device commands there are
+ * bulk ones for provisioning: {@code bulkAdd} with a {@code devices} array,
+ * {@code removeWhere} with a {@code filter} of type, room and status, and
+ * {@code setStatus} with {@code ids} and a {@code status}. Clients that negotiate the
+ * {@value DeviceBinaryCodec#SUBPROTOCOL} subprotocol receive events in binary form;
+ * their commands are still JSON text.
  */
 @ApplicationScoped
-@ServerEndpoint("/actions")
+@ServerEndpoint(value = "/actions", subprotocols = {DeviceBinaryCodec.SUBPROTOCOL})
 public class DeviceWebSocketServer {
+    private static final Logger LOGGER = Logger.getLogger(DeviceWebSocketServer.class.getName());
+
     @Inject
     private DeviceSessionHandler sessionHandler;
 
+    private final DeviceCommandDecoder commands = new DeviceCommandDecoder()
+            .on("add", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    Device device = toDevice(command);
+                    if (device == null) {
+                        return false;
+                    }
+                    sessionHandler.addDevice(device);
+                    return true;
+                }
+            })
+            .on("bulkAdd", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    if (command.getDevices() == null) {
+                        return false;
+                    }
+                    List<Device> devices = new ArrayList<>(command.getDevices().size());
+                    for (DeviceCommandDecoder.Command fields : command.getDevices()) {
+                        Device device = toDevice(fields);
+                        if (device == null) {
+                            return false;       // all or nothing
+                        }
+                        devices.add(device);
+                    }
+                    sessionHandler.addDevices(devices);
+                    return true;
+                }
+            })
+            .on("remove", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    if (command.getId() < 0) {
+                        return false;
+                    }
+                    sessionHandler.removeDevice(command.getId());
+                    return true;
+                }
+            })
+            .on("toggle", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    if (command.getId() < 0) {
+                        return false;
+                    }
+                    sessionHandler.toggleDevice(command.getId());
+                    return true;
+                }
+            })
+            .on("removeWhere", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    DeviceCommandDecoder.Command criteria = command.getFilter();
+                    if (criteria == null) {
+                        return false;
+                    }
+                    DeviceFilter filter = new DeviceFilter(criteria.getType(), criteria.getRoom(),
+                            criteria.getStatus());
+                    if (filter.isEmpty()) {
+                        return false;           // clearing everything takes an explicit criterion
+                    }
+                    sessionHandler.removeDevices(filter);
+                    return true;
+                }
+            })
+            .on("setStatus", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    if (command.getIds() == null
+                            || !(Device.ON.equals(command.getStatus()) || Device.OFF.equals(command.getStatus()))) {
+                        return false;
+                    }
+                    sessionHandler.setStatus(command.getIds(), Device.ON.equals(command.getStatus()));
+                    return true;
+                }
+            })
+            .on("subscribe", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    return sessionHandler.subscribe(session, command.getTopic());
+                }
+            })
+            .on("unsubscribe", new DeviceCommandDecoder.Handler() {
+                public boolean handle(DeviceCommandDecoder.Command command, Session session) {
+                    if (command.getTopic() == null) {
+                        return false;
+                    }
+                    sessionHandler.unsubscribe(session, command.getTopic());
+                    return true;
+                }
+            });
+
+    /**
+     * @return the device described by an add command, or null if a field is missing
+     */
+    private static Device toDevice(DeviceCommandDecoder.Command command) {
+        if (command.getName() == null || command.getType() == null || command.getDescription() == null) {
+            return null;
+        }
+        Device device = new Device();
+        device.setName(command.getName());
+        device.setDescription(command.getDescription());
+        device.setType(command.getType());
+        device.setRoom(command.getRoom());
+        return device;
+    }
+
     @OnOpen
     public void open(Session session) {
         sessionHandler.addSession(session);
@@ -38,32 +148,13 @@ public class DeviceWebSocketServer {
 
     @OnError
     public void onError(Throwable error) {
-        Logger.getLogger(DeviceWebSocketServer.class.getName()).log(Level.SEVERE, null, error);
+        LOGGER.log(Level.SEVERE, null, error);
     }
 
     @OnMessage
     public void handleMessage(String message, Session session) {
-        try (JsonReader reader = Json.createReader(new StringReader(message))) {
-            JsonObject jsonMessage = reader.readObject();
-
-            if ("add".equals(jsonMessage.getString("action"))) {
-                Device device = new Device();
-                device.setName(jsonMessage.getString("name"));
-                device.setDescription(jsonMessage.getString("description"));
-                device.setType(jsonMessage.getString("type"));
-                device.setStatus("Off");
-                sessionHandler.addDevice(device);
-            }
-
-            if ("remove".equals(jsonMessage.getString("action"))) {
-                int id = (int) jsonMessage.getInt("id");
-                sessionHandler.removeDevice(id);
-            }
-
-            if ("toggle".equals(jsonMessage.getString("action"))) {
-                int id = (int) jsonMessage.getInt("id");
-                sessionHandler.toggleDevice(id);
-            }
+        if (!commands.dispatch(message, session) && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Rejected command from " + session.getId() + ": " + message);
         }
     }
 }
@@ -1,10 +1,17 @@
 package com.mteng.webSocket;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.inject.Inject;
+import javax.websocket.CloseReason;
 import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
@@ -14,9 +21,34 @@ import javax.websocket.server.ServerEndpoint;
  * Where "localhost" is the address of the host,
  * "EchoChamber" is the name of the package
  * and "echo" is the address to access this class from the server
+ * <p>
+ * Echoes go through a bounded per-session queue (the {@code mteng.echo.*} properties,
+ * see {@link OutboundLimits}); by default a client that stops reading is disconnected
+ * rather than left to pile up memory. The queues are shared through the
+ * {@link EchoService}, which reports them under {@code echo} by {@link MetricsServlet}.
+ * <p>
+ * Since {@code /echo} doubles as our health and latency probe, it is kept cheap:
+ * <ul>
+ * <li>text and binary messages are echoed as they came, fragmented ones once their
+ * last part arrives (up to {@code mteng.echo.maxMessageBytes}, 1 MB by default)</li>
+ * <li>messages are logged at {@code FINE}, one in {@code mteng.echo.logEvery} (1000)</li>
+ * <li>every client is pinged by the {@link EchoService} and the round trips to its
+ * pongs are reported with the queues</li>
+ * </ul>
  */
 @ServerEndpoint("/echo")
 public class EchoServer {
+    private static final Logger LOGGER = Logger.getLogger(EchoServer.class.getName());
+    private static final int LOG_EVERY = Math.max(1, Integer.getInteger("mteng.echo.logEvery", 1000));
+    private static final int MAX_MESSAGE_BYTES = Integer.getInteger("mteng.echo.maxMessageBytes", 1 << 20);
+
+    @Inject
+    private EchoService echoes;
+
+    // a fresh instance serves each session, so fragments can be collected here
+    private StringBuilder textParts;
+    private ByteArrayOutputStream binaryParts;
+
     /**
      * @OnOpen allows us to intercept the creation of a new session.
      * The session class allows us to send data to the user.
@@ -25,28 +57,73 @@ public class EchoServer {
      */
     @OnOpen
     public void onOpen(Session session){
-        System.out.println(session.getId() + " has opened a connection");
-        try {
-            session.getBasicRemote().sendText("Connection Established");
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+        LOGGER.fine(session.getId() + " has opened a connection");
+        echoes.open(session);
+        echoes.getFanout().send(session, new OutboundMessage("Connection Established"));
     }
 
     /**
      * When a user sends a message to the server, this method will intercept the message
-     * and allow us to react to it. For now the message is read as a String.
+     * and allow us to react to it. A whole message arrives as a single last part.
      */
     @OnMessage
-    public void onMessage(String message, Session session){
-        System.out.println("Message from " + session.getId() + ": " + message);
-        try {
-            session.getBasicRemote().sendText(message);
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    public void onMessage(String part, boolean last, Session session){
+        String message = part;
+        if (textParts != null || !last) {
+            if (textParts == null) {
+                textParts = new StringBuilder(part.length() * 2);
+            }
+            if (textParts.length() + part.length() > MAX_MESSAGE_BYTES) {
+                tooBig(session);
+                return;
+            }
+            textParts.append(part);
+            if (!last) {
+                return;
+            }
+            message = textParts.toString();
+            textParts = null;
+        }
+        logSampled(session, message.length());
+        echoes.getFanout().offer(session, new OutboundMessage(message));
+    }
+
+    @OnMessage
+    public void onMessage(ByteBuffer part, boolean last, Session session){
+        if (binaryParts == null && last) {
+            byte[] message = new byte[part.remaining()];
+            part.get(message);
+            logSampled(session, message.length);
+            echoes.getFanout().offer(session, OutboundMessage.binary(message));
+            return;
+        }
+        if (binaryParts == null) {
+            binaryParts = new ByteArrayOutputStream(part.remaining() * 2);
+        }
+        if (binaryParts.size() + part.remaining() > MAX_MESSAGE_BYTES) {
+            tooBig(session);
+            return;
+        }
+        byte[] bytes = new byte[part.remaining()];
+        part.get(bytes);
+        binaryParts.write(bytes, 0, bytes.length);
+        if (last) {
+            byte[] message = binaryParts.toByteArray();
+            binaryParts = null;
+            logSampled(session, message.length);
+            echoes.getFanout().offer(session, OutboundMessage.binary(message));
         }
     }
 
+    /**
+     * Answers our pings with the send time we put in them. Only the first answer to the
+     * last ping counts.
+     */
+    @OnMessage
+    public void onPong(PongMessage pong, Session session){
+        echoes.pongReceived(session, pong.getApplicationData());
+    }
+
     /**
      * The user closes the connection.
      *
@@ -54,6 +131,27 @@ public class EchoServer {
      */
     @OnClose
     public void onClose(Session session){
-        System.out.println("Session " +session.getId()+" has ended");
+        LOGGER.fine("Session " + session.getId() + " has ended");
+        echoes.close(session);
+        textParts = null;
+        binaryParts = null;
+    }
+
+    private void logSampled(Session session, int length) {
+        long count = echoes.countMessage();
+        if (count % LOG_EVERY == 0 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Message " + count + " from " + session.getId() + ": " + length + " chars or bytes");
+        }
+    }
+
+    private void tooBig(Session session) {
+        textParts = null;
+        binaryParts = null;
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TOO_BIG,
+                    "Message over " + MAX_MESSAGE_BYTES + " bytes"));
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        }
     }
 }
@@ -0,0 +1,126 @@
+package com.mteng.webSocket;
+
+import com.mteng.util.LatencyHistogram;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the {@link EchoServer} sessions share: their fan-out, reported under
+ * {@code echo} by {@link MetricsServlet}, and the pinger that measures their round
+ * trips. Both live as long as the application, so nothing is left running after an
+ * undeploy.
+ * <p>
+ * Every session is pinged each {@code mteng.echo.pingIntervalMs} (5000, 0 for never).
+ * Only the first pong answering the last ping sent to a session is recorded, so
+ * unsolicited ones cannot skew the report.
+ */
+@ApplicationScoped
+public class EchoService {
+    private static final Logger LOGGER = Logger.getLogger(EchoService.class.getName());
+    private static final String METRICS_NAME = "echo";
+    private static final long PING_INTERVAL_MS = Long.getLong("mteng.echo.pingIntervalMs", 5000L);
+    // user property holding the send time of the session's unanswered ping, 0 if none
+    private static final String LAST_PING = EchoService.class.getName() + ".lastPing";
+
+    private final BroadcastFanout fanout =
+            new BroadcastFanout(OutboundLimits.fromSystemProperties("mteng.echo", SlowConsumerPolicy.DISCONNECT));
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    private final AtomicLong messages = new AtomicLong();
+    private ScheduledExecutorService pinger;
+
+    @PostConstruct
+    public void init() {
+        OutboundMetrics.register(METRICS_NAME, fanout, roundTrips);
+        if (PING_INTERVAL_MS > 0) {
+            pinger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "echo-pinger");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            pinger.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    pingAll();
+                }
+            }, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        OutboundMetrics.unregister(METRICS_NAME);
+        if (pinger != null) {
+            pinger.shutdownNow();
+            pinger = null;
+        }
+    }
+
+    public void open(Session session) {
+        session.getUserProperties().put(LAST_PING, new AtomicLong());   // before the pinger sees it
+        fanout.register(session);
+    }
+
+    public void close(Session session) {
+        fanout.unregister(session);
+    }
+
+    public BroadcastFanout getFanout() {
+        return fanout;
+    }
+
+    /**
+     * @return how many messages have been echoed, this one included
+     */
+    public long countMessage() {
+        return messages.incrementAndGet();
+    }
+
+    /**
+     * Records the round trip to a pong that answers the session's last ping.
+     */
+    public void pongReceived(Session session, ByteBuffer data) {
+        AtomicLong lastPing = lastPing(session);
+        if (data.remaining() != 8 || lastPing == null) {
+            return;
+        }
+        long sentAt = data.getLong(data.position());
+        if (sentAt != 0 && lastPing.compareAndSet(sentAt, 0)) {
+            roundTrips.record(System.nanoTime() - sentAt);
+        }
+    }
+
+    private static AtomicLong lastPing(Session session) {
+        return (AtomicLong) session.getUserProperties().get(LAST_PING);
+    }
+
+    private void pingAll() {
+        for (SessionOutbound outbound : fanout.getOutbounds()) {
+            AtomicLong lastPing = lastPing(outbound.getSession());
+            if (lastPing == null) {
+                continue;
+            }
+            long sentAt = System.nanoTime();
+            lastPing.set(sentAt);
+            ByteBuffer payload = ByteBuffer.allocate(8);
+            payload.putLong(0, sentAt);
+            try {
+                outbound.getSession().getAsyncRemote().sendPing(payload);
+            } catch (IOException | IllegalStateException | IllegalArgumentException ex) {
+                LOGGER.log(Level.FINE, "Ping to session " + outbound.getSession().getId() + " failed", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.mteng.webSocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by all {@link SessionOutbound} queues of one {@link BroadcastFanout}.
+ */
+public class FanoutStats {
+    final AtomicLong queued = new AtomicLong();
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong coalesced = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong paused = new AtomicLong();
+
+    /**
+     * @return messages accepted into a session queue
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return messages the container reported as delivered
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return messages discarded because a queue was full or paused
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return queued messages superseded by a newer one with the same key
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return sessions closed for falling too far behind
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return sends that completed with an error
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return times a session was paused at its high watermark
+     */
+    public long getPaused() {
+        return paused.get();
+    }
+
+    @Override
+    public String toString() {
+        return "queued=" + getQueued() + " sent=" + getSent() + " dropped=" + getDropped()
+                + " coalesced=" + getCoalesced() + " evicted=" + getEvicted() + " failed=" + getFailed() + " paused=" + getPaused();
+    }
+}
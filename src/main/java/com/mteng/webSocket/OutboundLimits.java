@@ -0,0 +1,52 @@
+package com.mteng.webSocket;
+
+/**
+ * How much may pile up for one session before its {@link SlowConsumerPolicy} applies:
+ * a number of queued messages, or a number of bytes buffered (queued plus the send in
+ * flight, counting text by its length). A session paused at the high watermark
+ * resumes once it has drained to the low one.
+ */
+public final class OutboundLimits {
+    private final int queueCapacity;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final SlowConsumerPolicy policy;
+
+    public OutboundLimits(int queueCapacity, long highWatermark, long lowWatermark, SlowConsumerPolicy policy) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark " + lowWatermark
+                    + " is above high watermark " + highWatermark);
+        }
+        this.queueCapacity = queueCapacity;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+    }
+
+    /**
+     * Reads {@code <prefix>.queueCapacity} (256), {@code <prefix>.highWatermark}
+     * (1 MB), {@code <prefix>.lowWatermark} (256 KB) and {@code <prefix>.policy}.
+     */
+    public static OutboundLimits fromSystemProperties(String prefix, SlowConsumerPolicy defaultPolicy) {
+        return new OutboundLimits(Integer.getInteger(prefix + ".queueCapacity", 256),
+                Long.getLong(prefix + ".highWatermark", 1L << 20),
+                Long.getLong(prefix + ".lowWatermark", 256L << 10),
+                SlowConsumerPolicy.valueOf(System.getProperty(prefix + ".policy", defaultPolicy.name())));
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,72 @@
+package com.mteng.webSocket;
+
+/**
+ * Immutable frame queued for one or more sessions. The text form is present unless
+ * the message was created {@link #binary binary-only}; the binary form, if the
+ * message has one, is encoded on first use and then shared like the text.
+ */
+public final class OutboundMessage {
+    public static final int NO_KEY = -1;
+
+    /**
+     * Produces the binary form of a message; called at most a few times per message.
+     */
+    public interface BinaryEncoder {
+        byte[] encode();
+    }
+
+    private final String text;
+    private final int coalesceKey;
+    private final BinaryEncoder encoder;
+    private volatile byte[] binary;
+
+    public OutboundMessage(String text) {
+        this(text, NO_KEY);
+    }
+
+    /**
+     * @param coalesceKey messages with the same non-negative key supersede each other
+     *                    under {@link SlowConsumerPolicy#COALESCE}
+     */
+    public OutboundMessage(String text, int coalesceKey) {
+        this(text, coalesceKey, null);
+    }
+
+    public OutboundMessage(String text, int coalesceKey, BinaryEncoder encoder) {
+        this.text = text;
+        this.coalesceKey = coalesceKey;
+        this.encoder = encoder;
+    }
+
+    /**
+     * @return a message without a text form, sent as binary to every session
+     */
+    public static OutboundMessage binary(byte[] bytes) {
+        OutboundMessage message = new OutboundMessage(null, NO_KEY, null);
+        message.binary = bytes;
+        return message;
+    }
+
+    /**
+     * @return the text form, or null for a binary-only message
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the binary form, or null if this message only exists as text
+     */
+    public byte[] getBinary() {
+        byte[] bytes = binary;
+        if (bytes == null && encoder != null) {
+            // racing senders may both encode; the results are equal
+            binary = bytes = encoder.encode();
+        }
+        return bytes;
+    }
+
+    public int getCoalesceKey() {
+        return coalesceKey;
+    }
+}
@@ -0,0 +1,103 @@
+package com.mteng.webSocket;
+
+import com.mteng.util.LatencyHistogram;
+
+import javax.json.spi.JsonProvider;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The fan-outs whose outbound queues are reported by {@link MetricsServlet}, by name.
+ * <p>
+ * Per session the report shows the bytes still queued or in flight, the queued
+ * message count, whether it is paused and its topics; per fan-out, its limits and
+ * {@link FanoutStats}, plus the round-trip times of its clients if it measures them.
+ * Each figure is read on its own, so they are not one snapshot.
+ */
+public final class OutboundMetrics {
+    private static final ConcurrentSkipListMap<String, BroadcastFanout> FANOUTS = new ConcurrentSkipListMap<>();
+    private static final ConcurrentSkipListMap<String, LatencyHistogram> ROUND_TRIPS = new ConcurrentSkipListMap<>();
+    private static final JsonGeneratorFactory GENERATORS =
+            JsonProvider.provider().createGeneratorFactory(null);
+
+    private OutboundMetrics() {
+    }
+
+    public static void register(String name, BroadcastFanout fanout) {
+        FANOUTS.put(name, fanout);
+    }
+
+    /**
+     * @param roundTrips client round-trip times of the fan-out, in nanoseconds
+     */
+    public static void register(String name, BroadcastFanout fanout, LatencyHistogram roundTrips) {
+        ROUND_TRIPS.put(name, roundTrips);
+        FANOUTS.put(name, fanout);
+    }
+
+    public static void unregister(String name) {
+        FANOUTS.remove(name);
+        ROUND_TRIPS.remove(name);
+    }
+
+    public static void write(Writer out) {
+        JsonGenerator json = GENERATORS.createGenerator(out);
+        json.writeStartObject();
+        for (Map.Entry<String, BroadcastFanout> entry : FANOUTS.entrySet()) {
+            writeFanout(json, entry.getKey(), entry.getValue(), ROUND_TRIPS.get(entry.getKey()));
+        }
+        json.writeEnd().flush();
+    }
+
+    private static void writeFanout(JsonGenerator json, String name, BroadcastFanout fanout,
+                                    LatencyHistogram roundTrips) {
+        OutboundLimits limits = fanout.getLimits();
+        FanoutStats stats = fanout.getStats();
+        json.writeStartObject(name)
+                .write("policy", limits.getPolicy().name())
+                .write("queueCapacity", limits.getQueueCapacity())
+                .write("highWatermark", limits.getHighWatermark())
+                .write("lowWatermark", limits.getLowWatermark())
+                .writeStartObject("stats")
+                .write("queued", stats.getQueued())
+                .write("sent", stats.getSent())
+                .write("dropped", stats.getDropped())
+                .write("coalesced", stats.getCoalesced())
+                .write("evicted", stats.getEvicted())
+                .write("failed", stats.getFailed())
+                .write("paused", stats.getPaused())
+                .writeEnd();
+        if (roundTrips != null) {
+            json.writeStartObject("roundTripMicros")
+                    .write("count", roundTrips.getCount())
+                    .write("mean", (long) roundTrips.getMean() / 1000)
+                    .write("p50", roundTrips.getValueAtPercentile(50) / 1000)
+                    .write("p99", roundTrips.getValueAtPercentile(99) / 1000)
+                    .write("p99.9", roundTrips.getValueAtPercentile(99.9) / 1000)
+                    .write("max", roundTrips.getMax() / 1000)
+                    .writeEnd();
+        }
+        long bufferedBytes = 0;
+        json.writeStartArray("sessions");
+        for (SessionOutbound outbound : fanout.getOutbounds()) {
+            long bytes = outbound.getBufferedBytes();
+            bufferedBytes += bytes;
+            json.writeStartObject()
+                    .write("id", outbound.getSession().getId())
+                    .write("bufferedBytes", bytes)
+                    .write("queued", outbound.getQueueSize())
+                    .write("paused", outbound.isPaused());
+            json.writeStartArray("topics");
+            for (String topic : outbound.topics) {
+                json.write(topic);
+            }
+            json.writeEnd().writeEnd();
+        }
+        json.writeEnd()
+                .write("bufferedBytes", bufferedBytes)
+                .writeEnd();
+    }
+}
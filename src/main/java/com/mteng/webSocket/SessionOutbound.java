@@ -0,0 +1,255 @@
+package com.mteng.webSocket;
+
+import javax.websocket.CloseReason;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded outbound queue of one session, drained through the async remote with at
+ * most one send in flight. Producers never block: when the session has more queued
+ * than its {@link OutboundLimits} allow, by message count or by buffered bytes, the
+ * {@link SlowConsumerPolicy} decides what gives. The limits only apply to a backlog: a
+ * message that finds the session idle is sent however large it is, so one big frame
+ * cannot evict or pause a healthy client (and a pause always has a send in flight to
+ * end it).
+ * <p>
+ * A binary session is sent the binary form of each message that has one.
+ */
+public class SessionOutbound implements SendHandler {
+    private static final Logger LOGGER = Logger.getLogger(SessionOutbound.class.getName());
+
+    private final Session session;
+    private final OutboundLimits limits;
+    private final FanoutStats stats;
+    private final boolean binary;
+    private final BroadcastFanout.ResumeListener resumeListener;
+    private final ArrayDeque<OutboundMessage> queue = new ArrayDeque<>();
+    // maintained by BroadcastFanout under its subscription lock, read by publishers
+    final Set<String> topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private long bufferedBytes;     // queued plus in flight
+    private int inFlightBytes;
+    private boolean sending;
+    private boolean paused;
+    private boolean missed;         // broadcasts were dropped while paused
+    private boolean closed;
+
+    /**
+     * @param resumeListener told when a paused session has drained, or null
+     */
+    public SessionOutbound(Session session, OutboundLimits limits, FanoutStats stats, boolean binary,
+                           BroadcastFanout.ResumeListener resumeListener) {
+        this.session = session;
+        this.limits = limits;
+        this.stats = stats;
+        this.binary = binary;
+        this.resumeListener = resumeListener;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return bytes queued or in flight for this session
+     */
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Queues {@code message} and starts sending if the session is idle.
+     *
+     * @return false if the session has been closed or was evicted by this call
+     */
+    public boolean enqueue(OutboundMessage message) {
+        return enqueue(message, true);
+    }
+
+    /**
+     * @param bounded false to bypass the limits, for replies the session asked for
+     *                (such as its initial device list) that must not be lost
+     */
+    public boolean enqueue(OutboundMessage message, boolean bounded) {
+        boolean evict = false;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (bounded && paused) {
+                missed = true;
+                stats.dropped.incrementAndGet();
+                return true;
+            }
+            if (limits.getPolicy() == SlowConsumerPolicy.COALESCE && !queue.isEmpty() && replace(message)) {
+                return true;
+            }
+            int size = sizeOf(message);
+            if (bounded && sending && overLimit(size)) {
+                switch (limits.getPolicy()) {
+                    case DISCONNECT:
+                        closed = true;
+                        evict = true;
+                        break;
+                    case PAUSE:
+                        paused = true;
+                        missed = true;
+                        stats.paused.incrementAndGet();
+                        stats.dropped.incrementAndGet();
+                        return true;
+                    default:
+                        while (!queue.isEmpty() && overLimit(size)) {
+                            bufferedBytes -= sizeOf(queue.pollFirst());
+                            stats.dropped.incrementAndGet();
+                        }
+                        break;
+                }
+            }
+            if (!evict) {
+                queue.addLast(message);
+                bufferedBytes += size;
+                stats.queued.incrementAndGet();
+                if (sending) {
+                    return true;
+                }
+                sending = true;
+            }
+        }
+        if (evict) {
+            evict();
+            return false;
+        }
+        sendNext();
+        return true;
+    }
+
+    /**
+     * Stops sending and discards everything still queued.
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        bufferedBytes = inFlightBytes;
+    }
+
+    public void onResult(SendResult result) {
+        if (result.isOK()) {
+            stats.sent.incrementAndGet();
+        } else {
+            stats.failed.incrementAndGet();
+            LOGGER.log(Level.FINE, "Send to session " + session.getId() + " failed", result.getException());
+        }
+        boolean resumed = false;
+        synchronized (this) {
+            bufferedBytes -= inFlightBytes;
+            inFlightBytes = 0;
+            if (paused && bufferedBytes <= limits.getLowWatermark()) {
+                paused = false;
+                resumed = missed;
+                missed = false;
+            }
+        }
+        if (resumed && resumeListener != null) {
+            resumeListener.resumed(session);
+        }
+        sendNext();
+    }
+
+    private void sendNext() {
+        OutboundMessage next;
+        synchronized (this) {
+            next = closed ? null : queue.pollFirst();
+            if (next == null) {
+                sending = false;
+                return;
+            }
+            inFlightBytes = sizeOf(next);
+        }
+        try {
+            byte[] bytes = wantsBinary(next) ? next.getBinary() : null;
+            if (bytes != null) {
+                session.getAsyncRemote().sendBinary(ByteBuffer.wrap(bytes), this);
+            } else {
+                session.getAsyncRemote().sendText(next.getText(), this);
+            }
+        } catch (IllegalStateException ex) {
+            // the session closed underneath us, so no result will come
+            synchronized (this) {
+                inFlightBytes = 0;
+            }
+            close();
+        }
+    }
+
+    private boolean overLimit(int size) {
+        return queue.size() >= limits.getQueueCapacity()
+                || bufferedBytes + size > limits.getHighWatermark();
+    }
+
+    /**
+     * @return the bytes the message will take on the wire, counting text by its length
+     */
+    private int sizeOf(OutboundMessage message) {
+        byte[] bytes = wantsBinary(message) ? message.getBinary() : null;
+        return bytes != null ? bytes.length : message.getText().length();
+    }
+
+    private boolean wantsBinary(OutboundMessage message) {
+        return binary || message.getText() == null;
+    }
+
+    /**
+     * Drops a queued message with the same key and appends {@code message}. Only the
+     * keyed tail of the queue is searched: keyed messages concern different devices
+     * and may be reordered freely, but nothing moves ahead of an unkeyed message such
+     * as an add or remove.
+     */
+    private boolean replace(OutboundMessage message) {
+        int key = message.getCoalesceKey();
+        if (key == OutboundMessage.NO_KEY) {
+            return false;
+        }
+        Iterator<OutboundMessage> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            OutboundMessage queued = it.next();
+            if (queued.getCoalesceKey() == OutboundMessage.NO_KEY) {
+                return false;
+            }
+            if (queued.getCoalesceKey() == key) {
+                it.remove();
+                queue.addLast(message);
+                bufferedBytes += sizeOf(message) - sizeOf(queued);
+                stats.coalesced.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evict() {
+        stats.evicted.incrementAndGet();
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                    "Outbound queue overflow"));
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.mteng.webSocket;
+
+/**
+ * What {@link SessionOutbound} does when a session's outbound queue is full, by
+ * message count or by buffered bytes (see {@link OutboundLimits}).
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Discard the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Whenever anything is queued, not only when the queue is full, drop a queued
+     * message with the same coalesce key (e.g. an older state of the same device) and
+     * append the new one at the tail, so versions still go out in order. Only the keyed
+     * tail of the queue is searched. If nothing was coalesced and the queue is full,
+     * discard the oldest message.
+     */
+    COALESCE,
+    /**
+     * Close the session; the client is expected to reconnect and resync.
+     */
+    DISCONNECT,
+    /**
+     * Stop queueing broadcasts until the session has drained to the low watermark,
+     * then tell the fan-out's {@link BroadcastFanout.ResumeListener} so it can resync
+     * the session.
+     */
+    PAUSE
+}
@@ -0,0 +1,224 @@
+package com.mteng.webSocket.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bare RFC 6455 client over a blocking socket, just enough to drive load: it performs
+ * the opening handshake, sends masked text frames, answers pings and reassembles
+ * fragmented messages. No extensions, no TLS.
+ * <p>
+ * Sends may come from any thread; {@link #receiveText()} from one reader at a time.
+ */
+public class WebSocketConnection implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int CONTINUATION = 0;
+    private static final int TEXT = 1;
+    private static final int CLOSE = 8;
+    private static final int PING = 9;
+    private static final int PONG = 10;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    /**
+     * Connects and completes the handshake.
+     *
+     * @param uri a {@code ws://} URI
+     */
+    public WebSocketConnection(URI uri, int timeoutMillis) throws IOException {
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(uri.getHost(), port), timeoutMillis);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            handshake(uri, port);
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public void sendText(String text) throws IOException {
+        send(TEXT, text.getBytes(UTF_8));
+    }
+
+    /**
+     * Blocks until the next text message has been read completely, answering any
+     * pings on the way and skipping binary messages.
+     *
+     * @throws EOFException if the server closed the connection
+     */
+    public String receiveText() throws IOException {
+        ByteArrayOutputStream message = null;
+        boolean text = false;
+        while (true) {
+            int first = in.readUnsignedByte();
+            int second = in.readUnsignedByte();
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if ((second & 0x80) != 0 || length < 0 || length > Integer.MAX_VALUE) {
+                throw new ProtocolException("Bad frame header");
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            if (opcode == PING) {
+                send(PONG, payload);
+                continue;
+            }
+            if (opcode == PONG) {
+                continue;
+            }
+            if (opcode == CLOSE) {
+                throw new EOFException("Closed by server");
+            }
+            if (opcode != CONTINUATION) {
+                text = opcode == TEXT;
+                message = null;
+            }
+            if (fin && message == null) {
+                if (text) {
+                    return new String(payload, UTF_8);
+                }
+                continue;
+            }
+            if (message == null) {
+                message = new ByteArrayOutputStream(payload.length * 2);
+            }
+            message.write(payload, 0, payload.length);
+            if (fin) {
+                if (text) {
+                    return new String(message.toByteArray(), UTF_8);
+                }
+                message = null;
+            }
+        }
+    }
+
+    /**
+     * Sends a close frame and closes the socket without waiting for the reply.
+     */
+    public void close() throws IOException {
+        try {
+            send(CLOSE, new byte[]{0x03, (byte) 0xE8});     // 1000, normal closure
+        } catch (IOException e) {
+            // closing anyway
+        } finally {
+            socket.close();
+        }
+    }
+
+    private synchronized void send(int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        if (payload.length < 126) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(0x80 | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        out.write(mask);
+        byte[] masked = new byte[payload.length];
+        for (int i = 0; i < payload.length; i++) {
+            masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        out.write(masked);
+        out.flush();
+    }
+
+    private void handshake(URI uri, int port) throws IOException {
+        byte[] nonce = new byte[16];
+        ThreadLocalRandom.current().nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + uri.getHost() + ":" + port + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        out.write(request.getBytes(ASCII));
+        out.flush();
+
+        String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new ProtocolException("Handshake refused: " + status);
+        }
+        String accept = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept(key).equals(accept)) {
+            throw new ProtocolException("Bad Sec-WebSocket-Accept: " + accept);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.mteng.webSocket.client;
+
+import com.mteng.basicSocket.Options;
+import com.mteng.util.LatencyHistogram;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load driver for the {@code /echo} and {@code /actions} endpoints of a running
+ * container, normally on loopback.
+ * <p>
+ * Options (all optional):
+ * <ul>
+ * <li>url=ws://host:port/context - where the web app is deployed
+ * (default ws://localhost:8481/socketHelloWorld)</li>
+ * <li>mode=echo|toggle - what to drive (default echo)</li>
+ * <li>sessions=N - concurrent sessions (default 100)</li>
+ * <li>payload=B - echo message size in bytes (default 32)</li>
+ * <li>togglePeriodMs=T - time between toggles (default 100)</li>
+ * <li>timeoutMs=T - connect and toggle delivery timeout (default 5000)</li>
+ * <li>duration=S, warmup=S, interval=S - seconds (defaults 10, 0, 1)</li>
+ * </ul>
+ * Connect time (TCP connect plus handshake) is measured for every session. In echo
+ * mode every session runs a closed loop of echoes and reports their round trips. In
+ * toggle mode the first session adds a device of its own and toggles it, one toggle
+ * at a time; the report shows the fan-out latency (from sending a toggle to the last
+ * session receiving it) and the delivery latency to each session. Toggles not
+ * delivered to everyone within the timeout count as missed. A toggle is told apart
+ * from earlier ones by its state version, so one delivered late is not counted for a
+ * later round.
+ */
+public class WebSocketLoadDriver {
+    private static final long THREAD_STACK_SIZE = 256 * 1024;
+
+    private final String url;
+    private final boolean toggle;
+    private final int sessions;
+    private final int payloadSize;
+    private final long togglePeriodNanos;
+    private final int timeoutMillis;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long intervalNanos;
+
+    private final LatencyHistogram connects = new LatencyHistogram();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final LatencyHistogram deliveries = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final List<WebSocketConnection> connections = new ArrayList<>();
+    private volatile boolean running = true;
+
+    // toggle mode
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicLong latestVersion = new AtomicLong();     // of our toggles seen
+    private volatile Round round;
+    private String toggleMarker;
+    private int[] seenRound;
+    private Thread toggler;
+
+    /**
+     * One toggle on its way to every session.
+     */
+    private static final class Round {
+        final int number;
+        final long after;       // toggles up to this version belong to earlier rounds
+        final AtomicLong version = new AtomicLong();     // this toggle's, once seen
+        final CountDownLatch delivered;
+        final AtomicLong lastArrival = new AtomicLong();
+        volatile long sentAt;
+
+        Round(int number, long after, int sessions) {
+            this.number = number;
+            this.after = after;
+            this.delivered = new CountDownLatch(sessions);
+        }
+
+        /**
+         * @return true if {@code toggleVersion} is this round's toggle
+         */
+        boolean matches(long toggleVersion) {
+            if (toggleVersion <= after) {
+                return false;
+            }
+            version.compareAndSet(0, toggleVersion);    // the first sighting fixes it
+            return version.get() == toggleVersion;
+        }
+    }
+
+    public WebSocketLoadDriver(Options options) {
+        this.url = options.get("url", "ws://localhost:8481/socketHelloWorld");
+        this.toggle = "toggle".equals(options.get("mode", "echo"));
+        this.sessions = Math.max(1, options.getInt("sessions", 100));
+        this.payloadSize = options.getInt("payload", 32);
+        this.togglePeriodNanos = TimeUnit.MILLISECONDS.toNanos(options.getInt("togglePeriodMs", 100));
+        this.timeoutMillis = options.getInt("timeoutMs", 5000);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(options.getInt("warmup", 0));
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(options.getInt("interval", 1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new WebSocketLoadDriver(Options.parse(args, 0)).run();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        URI uri = URI.create(url + (toggle ? "/actions" : "/echo"));
+        System.out.println("Driving " + uri + " with " + sessions + " sessions, "
+                + (toggle ? "a toggle every " + TimeUnit.NANOSECONDS.toMillis(togglePeriodNanos) + " ms"
+                : payloadSize + " byte echoes"));
+        connectAll(uri);
+        System.out.println("connected=" + connections.size() + "  connect(us) " + connects.summary(1000)
+                + String.format(" mean=%.1f", connects.getMean() / 1000));
+        if (connections.isEmpty()) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        List<Thread> threads = toggle ? startToggling() : startEchoing();
+        LatencyHistogram total = new LatencyHistogram();
+        LatencyHistogram totalDeliveries = new LatencyHistogram();
+        long measuredFrom = start + warmupNanos;
+        long end = measuredFrom + durationNanos;
+        long nextReport = start + intervalNanos;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            LockSupport.parkNanos(Math.max(0, Math.min(nextReport, end) - System.nanoTime()));
+            long now = System.nanoTime();
+            if (now < nextReport && now < end) {
+                continue;
+            }
+            LatencyHistogram slice = interval.copyAndReset();
+            LatencyHistogram deliverySlice = deliveries.copyAndReset();
+            report(String.format("%6.1fs", (now - start) / 1e9), slice, deliverySlice, now - lastReport);
+            if (now > measuredFrom) {
+                total.add(slice);
+                totalDeliveries.add(deliverySlice);
+            }
+            lastReport = now;
+            nextReport = now + intervalNanos;
+        }
+        running = false;
+        if (toggler != null) {
+            toggler.join();         // lets it remove its device
+        }
+        for (WebSocketConnection connection : connections) {
+            connection.close();     // unblocks the readers
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        System.out.println("---");
+        report(" total", total, totalDeliveries, durationNanos);
+        System.out.println("errors=" + errors.get() + (toggle ? "  missed=" + missed.get() : ""));
+    }
+
+    private void report(String label, LatencyHistogram histogram, LatencyHistogram delivery, long elapsedNanos) {
+        long count = histogram.getCount();
+        String line = label + (toggle ? "  toggles=" : "  echoes=") + count
+                + String.format("  rate=%.0f/s  ", count * 1e9 / Math.max(1, elapsedNanos))
+                + (toggle ? "fanout(us) " : "rtt(us) ") + histogram.summary(1000)
+                + String.format(" mean=%.1f", histogram.getMean() / 1000);
+        if (toggle) {
+            line += "  delivery(us) " + delivery.summary(1000);
+        }
+        System.out.println(line);
+    }
+
+    private void connectAll(URI uri) {
+        for (int i = 0; i < sessions; i++) {
+            long begin = System.nanoTime();
+            try {
+                WebSocketConnection connection = new WebSocketConnection(uri, timeoutMillis);
+                connects.record(System.nanoTime() - begin);
+                connections.add(connection);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private List<Thread> startEchoing() {
+        char[] padding = new char[payloadSize];
+        Arrays.fill(padding, 'x');
+        final String payload = new String(padding);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections.size(); i++) {
+            final WebSocketConnection connection = connections.get(i);
+            threads.add(daemon("echo-" + i, new Runnable() {
+                public void run() {
+                    runEchoLoop(connection, payload);
+                }
+            }));
+        }
+        return threads;
+    }
+
+    private void runEchoLoop(WebSocketConnection connection, String payload) {
+        try {
+            connection.receiveText();       // the greeting
+            while (running) {
+                long sentAt = System.nanoTime();
+                connection.sendText(payload);
+                connection.receiveText();
+                interval.record(System.nanoTime() - sentAt);
+            }
+        } catch (IOException e) {
+            if (running) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private List<Thread> startToggling() throws IOException {
+        final WebSocketConnection control = connections.get(0);
+        final int id = addDevice(control);
+        toggleMarker = ",\"id\":" + id + ",\"status\":";
+        seenRound = new int[connections.size()];
+        live.set(connections.size());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections.size(); i++) {
+            final int index = i;
+            threads.add(daemon("toggle-reader-" + i, new Runnable() {
+                public void run() {
+                    runToggleReader(index);
+                }
+            }));
+        }
+        toggler = daemon("toggler", new Runnable() {
+            public void run() {
+                runToggler(control, id);
+            }
+        });
+        return threads;
+    }
+
+    /**
+     * Adds a device only this run toggles and waits for it to be announced.
+     *
+     * @return its id
+     */
+    private int addDevice(WebSocketConnection control) throws IOException {
+        String name = "load-driver-" + System.nanoTime();
+        control.sendText(Json.createObjectBuilder()
+                .add("action", "add")
+                .add("name", name)
+                .add("type", "Other")
+                .add("description", "Toggled by " + getClass().getSimpleName())
+                .build().toString());
+        while (true) {
+            String text = control.receiveText();
+            if (!text.contains(name)) {
+                continue;
+            }
+            try (JsonReader reader = Json.createReader(new StringReader(text))) {
+                JsonObject frame = reader.readObject();
+                List<JsonValue> events = "batch".equals(frame.getString("action"))
+                        ? frame.getJsonArray("events") : Arrays.<JsonValue>asList(frame);
+                for (JsonValue value : events) {
+                    // an add carries the device's fields alongside its action
+                    JsonObject event = (JsonObject) value;
+                    if ("add".equals(event.getString("action")) && name.equals(event.getString("name", null))) {
+                        return event.getInt("id");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Toggles the device one round at a time; a round ends when every live session
+     * has seen the toggle or the timeout expires.
+     */
+    private void runToggler(WebSocketConnection control, int id) {
+        try {
+            for (int number = 1; running; number++) {
+                Round next = new Round(number, latestVersion.get(), live.get());
+                next.sentAt = System.nanoTime();
+                round = next;
+                control.sendText("{\"action\":\"toggle\",\"id\":" + id + "}");
+                if (next.delivered.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    interval.record(next.lastArrival.get() - next.sentAt);
+                } else if (running) {
+                    missed.incrementAndGet();
+                }
+                waitUntil(next.sentAt + togglePeriodNanos);
+            }
+            control.sendText("{\"action\":\"remove\",\"id\":" + id + "}");
+        } catch (IOException e) {
+            if (running) {
+                errors.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runToggleReader(int index) {
+        WebSocketConnection connection = connections.get(index);
+        try {
+            while (running) {
+                String text = connection.receiveText();
+                long now = System.nanoTime();
+                long toggleVersion = toggleVersion(text);
+                if (toggleVersion < 0) {
+                    continue;
+                }
+                long seen;
+                while ((seen = latestVersion.get()) < toggleVersion
+                        && !latestVersion.compareAndSet(seen, toggleVersion)) {
+                    // retry
+                }
+                Round current = round;
+                if (current != null && seenRound[index] != current.number && current.matches(toggleVersion)) {
+                    seenRound[index] = current.number;
+                    deliveries.record(now - current.sentAt);
+                    long last;
+                    while ((last = current.lastArrival.get()) < now
+                            && !current.lastArrival.compareAndSet(last, now)) {
+                        // retry
+                    }
+                    current.delivered.countDown();
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                errors.incrementAndGet();
+                live.decrementAndGet();
+                Round current = round;
+                if (current != null && seenRound[index] != current.number) {
+                    current.delivered.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds our device's toggle in an event or batch frame, which the server writes as
+     * {@code {"action":"toggle","version":V,"id":ID,"status":...}}.
+     *
+     * @return its version, or -1 if there is none
+     */
+    private long toggleVersion(String text) {
+        int marker = text.lastIndexOf(toggleMarker);     // the newest, in a batch
+        if (marker < 0) {
+            return -1;
+        }
+        int start = marker;
+        while (start > 0 && Character.isDigit(text.charAt(start - 1))) {
+            start--;
+        }
+        return start < marker && text.startsWith("\"version\":", start - 10)
+                ? Long.parseLong(text.substring(start, marker)) : -1;
+    }
+
+    private static void waitUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(null, task, name, THREAD_STACK_SIZE);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
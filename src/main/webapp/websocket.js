@@ -1,20 +1,139 @@
 window.onload = init;
 //var socket = new WebSocket("ws://localhost:8080/WebsocketHome/actions");
 // var socket = new WebSocket("ws://172.29.128.99:8002/socketHelloWorld/actions");
-var socket = new WebSocket("ws://localhost:8481/socketHelloWorld/actions");
-socket.onmessage = onMessage;
+var socketUrl = "ws://localhost:8481/socketHelloWorld/actions";
+var socket;
+var lastVersion = -1;      // state version of what is on screen, -1 before the first snapshot
+var reconnectDelay = 1000;
+
+// Open the page with ?wire=binary to receive events in the compact binary form.
+// The tables must match DeviceBinaryCodec on the server.
+var BINARY_PROTOCOL = "devices.bin.v1";
+var useBinary = /[?&]wire=binary/.test(window.location.search);
+var ACTIONS = [null, "add", "remove", "toggle", "snapshot", "batch"];
+var TYPES = ["Appliance", "Electronics", "Lights", "Other"];
+var STATUSES = ["Off", "On"];
+var subscriptions = [];   // topics such as "type:Lights" or "room:Kitchen"; none means everything
+var utf8 = typeof TextDecoder !== "undefined" ? new TextDecoder("utf-8") : null;
+
+function connect() {
+    // after a drop, ask only for the changes we missed
+    var url = lastVersion >= 0 ? socketUrl + "?since=" + lastVersion : socketUrl;
+    socket = useBinary && utf8 ? new WebSocket(url, [BINARY_PROTOCOL]) : new WebSocket(url);
+    socket.binaryType = "arraybuffer";
+    socket.onmessage = onMessage;
+    socket.onopen = function () {
+        reconnectDelay = 1000;
+        // subscriptions belong to the connection; each one is answered with a snapshot
+        subscriptions.forEach(function (topic) {
+            sendTopicAction("subscribe", topic);
+        });
+    };
+    socket.onclose = function () {
+        // jittered backoff so a server restart does not bring every client back at once
+        setTimeout(connect, reconnectDelay / 2 + Math.random() * reconnectDelay);
+        reconnectDelay = Math.min(reconnectDelay * 2, 30000);
+    };
+}
 
 function onMessage(event) {
-    var device = JSON.parse(event.data);
+    var message = typeof event.data === "string" ? JSON.parse(event.data)
+        : decodeFrame(new BinaryReader(event.data));
+    if (message.action === "snapshot") {
+        document.getElementById("content").innerHTML = "";
+        message.devices.forEach(printDeviceElement);
+        lastVersion = message.version;
+    } else if (message.action === "batch") {
+        message.events.forEach(applyEvent);
+    } else {
+        applyEvent(message);
+    }
+}
+
+function BinaryReader(buffer) {
+    this.view = new DataView(buffer);
+    this.offset = 0;
+}
+
+BinaryReader.prototype.byte = function () {
+    return this.view.getUint8(this.offset++);
+};
+
+BinaryReader.prototype.varint = function () {
+    var value = 0, scale = 1, b;
+    do {
+        b = this.byte();
+        value += (b & 0x7f) * scale;
+        scale *= 128;
+    } while (b & 0x80);
+    return value;
+};
+
+BinaryReader.prototype.string = function () {
+    var length = this.varint();
+    var bytes = new Uint8Array(this.view.buffer, this.view.byteOffset + this.offset, length);
+    this.offset += length;
+    return utf8.decode(bytes);
+};
+
+// Turns a binary frame into the same object the JSON form parses to.
+function decodeFrame(reader) {
+    var message = {action: ACTIONS[reader.byte()], version: reader.varint()};
+    var count, i;
+    if (message.action === "snapshot") {
+        message.devices = [];
+        for (count = reader.varint(), i = 0; i < count; i++) {
+            message.devices.push(decodeFields(reader, {}));
+        }
+    } else if (message.action === "batch") {
+        message.events = [];
+        for (count = reader.varint(), i = 0; i < count; i++) {
+            message.events.push(decodeFrame(reader));
+        }
+    } else {
+        decodeFields(reader, message);
+    }
+    return message;
+}
+
+function decodeFields(reader, target) {
+    for (var tag = reader.byte(); tag !== 0; tag = reader.byte()) {
+        switch (tag) {
+            case 1: target.id = reader.varint(); break;
+            case 2: target.name = reader.string(); break;
+            case 3: target.type = TYPES[reader.varint()]; break;
+            case 4: target.type = reader.string(); break;
+            case 5: target.status = STATUSES[reader.varint()]; break;
+            case 6: target.status = reader.string(); break;
+            case 7: target.description = reader.string(); break;
+            case 8: target.room = reader.string(); break;
+            default: throw new Error("Unknown field tag " + tag);
+        }
+    }
+    return target;
+}
+
+// Applies one change; batch frames hold several, already coalesced by the server.
+function applyEvent(device) {
+    if (lastVersion < 0 || device.version <= lastVersion) {
+        return;     // no snapshot yet, or already reflected on screen
+    }
+    lastVersion = device.version;
     if (device.action === "add") {
         printDeviceElement(device);
     }
     if (device.action === "remove") {
-        document.getElementById(device.id).remove();
+        var removed = document.getElementById(device.id);
+        if (removed) {
+            removed.remove();
+        }
         //device.parentNode.removeChild(device);
     }
     if (device.action === "toggle") {
         var node = document.getElementById(device.id);
+        if (!node) {
+            return;
+        }
         var statusText = node.children[2];
         if (device.status === "On") {
             statusText.innerHTML = "Status: " + device.status + " (<a href=\"#\" OnClick=toggleDevice(" + device.id + ")>Turn off</a>)";
@@ -24,16 +143,55 @@ function onMessage(event) {
     }
 }
 
-function addDevice(name, type, description) {
+function addDevice(name, type, description, room) {
     var DeviceAction = {
         action: "add",
         name: name,
         type: type,
         description: description
     };
+    if (room) {
+        DeviceAction.room = room;
+    }
     socket.send(JSON.stringify(DeviceAction));
 }
 
+// Bulk commands for provisioning; the server applies each one atomically.
+// devices: [{name, type, description, room}], filter: {type, room, status}
+function addDevices(devices) {
+    socket.send(JSON.stringify({action: "bulkAdd", devices: devices}));
+}
+
+function removeDevicesWhere(filter) {
+    socket.send(JSON.stringify({action: "removeWhere", filter: filter}));
+}
+
+function setDeviceStatus(ids, status) {
+    socket.send(JSON.stringify({action: "setStatus", ids: ids, status: status}));
+}
+
+// Topics are "id:<id>", "type:<type>" or "room:<room>".
+function subscribe(topic) {
+    if (subscriptions.indexOf(topic) < 0) {
+        subscriptions.push(topic);
+        sendTopicAction("subscribe", topic);
+    }
+}
+
+function unsubscribe(topic) {
+    var index = subscriptions.indexOf(topic);
+    if (index >= 0) {
+        subscriptions.splice(index, 1);
+        sendTopicAction("unsubscribe", topic);
+    }
+}
+
+function sendTopicAction(action, topic) {
+    if (socket.readyState === WebSocket.OPEN) {
+        socket.send(JSON.stringify({action: action, topic: topic}));
+    }
+}
+
 function removeDevice(element) {
     var id = element;
     var DeviceAction = {
@@ -66,7 +224,7 @@ function printDeviceElement(device) {
     deviceDiv.appendChild(deviceName);
 
     var deviceType = document.createElement("span");
-    deviceType.innerHTML = "<b>Type:</b> " + device.type;
+    deviceType.innerHTML = "<b>Type:</b> " + device.type + (device.room ? " <b>Room:</b> " + device.room : "");
     deviceDiv.appendChild(deviceType);
 
     var deviceStatus = document.createElement("span");
@@ -101,11 +259,13 @@ function formSubmit() {
     var name = form.elements["device_name"].value;
     var type = form.elements["device_type"].value;
     var description = form.elements["device_description"].value;
+    var room = form.elements["device_room"].value;
     hideForm();
     document.getElementById("addDeviceForm").reset();
-    addDevice(name, type, description);
+    addDevice(name, type, description, room);
 }
 
 function init() {
     hideForm();
+    connect();
 }